@@ -0,0 +1,194 @@
+package ru.kasyan;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Archive creation, extraction and listing on synthetic datasets generated in
+ * a temporary directory. Besides the operation rate JMH reports the
+ * {@code megabytes} and {@code entries} counters as MB/s and entries/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    @Param("2000")
+    public int smallFiles;
+
+    @Param("1024")
+    public int smallFileSize;
+
+    @Param("64")
+    public int largeFileMb;
+
+    @Param("16")
+    public int listedEntries;
+
+    private Path root;
+    private List<String> smallSet;
+    private List<String> largeSet;
+    private File smallArchive;
+    private File largeArchive;
+    private File listArchive;
+    private long listedBytes;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public double megabytes;
+        public long entries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+            entries = 0;
+        }
+
+        void add(long bytes, long count) {
+            megabytes += bytes / (1024.0 * 1024.0);
+            entries += count;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("tar-bench");
+        Random rnd = new Random(42);
+
+        File small = new File(root.toFile(), "small");
+        small.mkdirs();
+        byte[] content = new byte[smallFileSize];
+        for (int i = 0; i < smallFiles; i++) {
+            rnd.nextBytes(content);
+            Files.write(new File(small, "file-" + i + ".bin").toPath(), content);
+        }
+
+        File large = new File(root.toFile(), "large");
+        large.mkdirs();
+        writeRandom(new File(large, "large.bin"), largeFileMb * 1024L * 1024L, rnd);
+
+        File listed = new File(root.toFile(), "listed");
+        listed.mkdirs();
+        for (int i = 0; i < listedEntries; i++) {
+            writeRandom(new File(listed, "part-" + i + ".bin"), 4L * 1024 * 1024, rnd);
+        }
+        listedBytes = listedEntries * 4L * 1024 * 1024;
+
+        smallSet = Collections.singletonList(small.getPath());
+        largeSet = Collections.singletonList(large.getPath());
+
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(smallSet, root.toString(), "small-set");
+        archiver.addToArchive(largeSet, root.toString(), "large-set");
+        archiver.addToArchive(Collections.singletonList(listed.getPath()), root.toString(), "list-set");
+        smallArchive = new File(root.toFile(), "small-set.tar");
+        largeArchive = new File(root.toFile(), "large-set.tar");
+        listArchive = new File(root.toFile(), "list-set.tar");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Collections.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public void createManySmallFiles(Throughput throughput) throws IOException {
+        new Archiver().addToArchive(smallSet, root.toString(), "out-small");
+        throughput.add((long) smallFiles * smallFileSize, smallFiles);
+    }
+
+    @Benchmark
+    public void createSingleLargeFile(Throughput throughput) throws IOException {
+        new Archiver().addToArchive(largeSet, root.toString(), "out-large");
+        throughput.add(largeFileMb * 1024L * 1024L, 1);
+    }
+
+    @Benchmark
+    public void createManySmallFilesPipelined(Throughput throughput) throws IOException {
+        Archiver archiver = new Archiver();
+        archiver.setPipelined(true);
+        archiver.addToArchive(smallSet, root.toString(), "out-small-pipelined");
+        throughput.add((long) smallFiles * smallFileSize, smallFiles);
+    }
+
+    @Benchmark
+    public void createSingleLargeFilePipelined(Throughput throughput) throws IOException {
+        Archiver archiver = new Archiver();
+        archiver.setPipelined(true);
+        archiver.addToArchive(largeSet, root.toString(), "out-large-pipelined");
+        throughput.add(largeFileMb * 1024L * 1024L, 1);
+    }
+
+    @Benchmark
+    public void extractManySmallFiles(Throughput throughput) throws IOException {
+        new Archiver().extractArchive(smallArchive.getPath(), new File(root.toFile(), "extracted").getPath());
+        throughput.add((long) smallFiles * smallFileSize, smallFiles);
+    }
+
+    @Benchmark
+    public void extractManySmallFilesTaskPerFile(Throughput throughput) throws IOException {
+        Archiver archiver = new Archiver();
+        archiver.setMaxOpenFiles(256);
+        archiver.extractArchive(smallArchive.getPath(), new File(root.toFile(), "extracted-tasks").getPath());
+        throughput.add((long) smallFiles * smallFileSize, smallFiles);
+    }
+
+    @Benchmark
+    public long streamSingleLargeFile(Throughput throughput) throws IOException {
+        long sum = 0;
+        byte[] buf = new byte[64 * 1024];
+        try (TarInputStream in = new TarInputStream(new BufferedInputStream(new FileInputStream(largeArchive)))) {
+            while (in.getNextEntry() != null) {
+                int res;
+                while ((res = in.read(buf)) != -1) {
+                    sum += res;
+                }
+            }
+        }
+        throughput.add(sum, 1);
+        return sum;
+    }
+
+    @Benchmark
+    public int listSkipHeavy(Throughput throughput) throws IOException {
+        int count = 0;
+        try (TarInputStream in = new TarInputStream(new BufferedInputStream(new FileInputStream(listArchive)))) {
+            while (in.getNextEntry() != null) {
+                count++;
+            }
+        }
+        throughput.add(listedBytes, count);
+        return count;
+    }
+
+    @Benchmark
+    public int listSeeking(Throughput throughput) throws IOException {
+        int count = new Archiver().list(listArchive.getPath()).size();
+        throughput.add(listedBytes, count);
+        return count;
+    }
+
+    private static void writeRandom(File file, long size, Random rnd) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long done = 0; done < size; done += chunk.length) {
+                rnd.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - done));
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.kasyan;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header encode/decode hot paths, one header per operation, so the score is
+ * headers per second. Run with {@code -prof gc} to see bytes allocated per header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    private Entry entry;
+    private byte[] header;
+    private byte[] out;
+    private HeaderView view;
+
+    @Setup
+    public void setup() {
+        entry = new Entry(Header.createHeader("benchmark/data/set/file-000123.txt", 4096, 1504396800L, false, 0644));
+        header = new byte[512];
+        entry.writeEntryHeader(header);
+        out = new byte[512];
+        view = new HeaderView();
+    }
+
+    @Benchmark
+    public byte[] writeEntryHeader() {
+        entry.writeEntryHeader(out);
+        return out;
+    }
+
+    @Benchmark
+    public Entry parseTarHeader() {
+        return new Entry(header);
+    }
+
+    @Benchmark
+    public long viewSizeAndTime() {
+        view.reset(header, 0);
+        return view.getSize() + view.getModTime() + view.getMode();
+    }
+
+    @Benchmark
+    public String viewName() {
+        return view.reset(header, 0).getName();
+    }
+
+    @Benchmark
+    public long parseOctal() {
+        return Octal.parseOctal(header, HeaderView.SIZE_OFFSET, Header.SIZELEN);
+    }
+}
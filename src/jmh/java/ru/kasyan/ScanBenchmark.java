@@ -0,0 +1,106 @@
+package ru.kasyan;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Tree traversal and header creation for archive input. {@link FileTreeScanner}
+ * lists directories with a directory stream and reads the attributes of each
+ * entry with one stat call; the former recursion stats every file once per
+ * attribute. The default tree is small enough for a quick run; use
+ * {@code -p files=1000000} for the 1M-file case. One operation is a full scan
+ * of the tree, reported as time per scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param("100000")
+    public int files;
+
+    @Param("100")
+    public int filesPerDir;
+
+    private Path root;
+    private List<String> input;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("tar-scan");
+        File tree = new File(root.toFile(), "tree");
+        for (int i = 0; i < files; i++) {
+            int d = i / filesPerDir;
+            File parent = new File(tree, "d" + d % 32 + "/s" + d);
+            if (i % filesPerDir == 0) {
+                parent.mkdirs();
+            }
+            new File(parent, "f" + i).createNewFile();
+        }
+        input = Collections.singletonList(tree.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Collections.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public long scan() throws IOException {
+        return buildEntries(new FileTreeScanner(1).scan(input));
+    }
+
+    @Benchmark
+    public long scanParallel() throws IOException {
+        return buildEntries(new FileTreeScanner(8).scan(input));
+    }
+
+    /**
+     * The former File.list() recursion with a separate stat per attribute
+     */
+    @Benchmark
+    public long fileListRecursion() {
+        List<Entry> entries = new ArrayList<>();
+        File tree = new File(input.get(0));
+        listRecursive(tree, tree.getName() + "/", entries);
+        return entries.size();
+    }
+
+    private static long buildEntries(List<Archiver.Source> sources) {
+        long sum = 0;
+        for (Archiver.Source source : sources) {
+            sum += source.toEntry().getSize();
+        }
+        return sum + sources.size();
+    }
+
+    private static void listRecursive(File dir, String parent, List<Entry> entries) {
+        for (String name : dir.list()) {
+            File file = new File(dir, name);
+            if (file.isDirectory()) {
+                String[] children = file.list();
+                if (children != null && children.length != 0) {
+                    listRecursive(file, parent + name + "/", entries);
+                } else {
+                    entries.add(new Entry(file, parent + name + "/"));
+                }
+                continue;
+            }
+            entries.add(new Entry(file, parent + name));
+        }
+    }
+}
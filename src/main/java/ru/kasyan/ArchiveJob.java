@@ -0,0 +1,196 @@
+package ru.kasyan;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handle of a job submitted to an {@link ArchiveService}: its state, progress
+ * and result, and the means to cancel it.
+ *
+ * Progress is counted from the archive side: bytes written to an archive
+ * being created, or read from one being extracted, headers and padding
+ * included. The total is known once the extraction of an uncompressed
+ * archive has started.
+ */
+public class ArchiveJob {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    private final long id;
+    private final String description;
+    private final int priority;
+    private volatile long totalBytes = -1;
+    private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Progress progress = new Progress();
+    private volatile boolean cancelRequested;
+    private Thread runner;
+
+    ArchiveJob(long id, String description, int priority) {
+        this.id = id;
+        this.description = description;
+        this.priority = priority;
+    }
+
+    /**
+     * Sequence number of the job within its service, in submission order
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public long getEntriesProcessed() {
+        return entries.sum();
+    }
+
+    public long getBytesProcessed() {
+        return bytes.sum();
+    }
+
+    /**
+     * Bytes the job will process in total, or -1 if not known in advance
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Share of the work done between 0 and 1, or -1 if the total is not known
+     */
+    public double getProgress() {
+        if (state.get() == State.SUCCEEDED) {
+            return 1;
+        }
+        long total = totalBytes;
+        return total <= 0 ? -1 : Math.min(1, (double) getBytesProcessed() / total);
+    }
+
+    /**
+     * Completes when the job has finished; exceptionally with the failure, or
+     * with a {@link CancellationException} if it was cancelled
+     */
+    public CompletableFuture<Void> getResult() {
+        return result;
+    }
+
+    /**
+     * Cancels a queued job, which is then skipped when its turn comes, or
+     * stops a running one at its next write or read. Partly written files
+     * are left in place.
+     *
+     * @return false if the job had already finished
+     */
+    public boolean cancel() {
+        cancelRequested = true;
+        if (state.compareAndSet(State.QUEUED, State.CANCELLED)) {
+            result.cancel(false);
+            return true;
+        }
+        synchronized (this) {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+        return state.get() == State.RUNNING;
+    }
+
+    @Override
+    public String toString() {
+        return "job " + id + " [" + description + ", " + state.get() + ", " + getBytesProcessed() + " bytes]";
+    }
+
+    /**
+     * Moves a queued job to running on the current thread
+     *
+     * @return false if it was cancelled while queued
+     */
+    boolean start() {
+        synchronized (this) {
+            if (!state.compareAndSet(State.QUEUED, State.RUNNING)) {
+                return false;
+            }
+            runner = Thread.currentThread();
+            return true;
+        }
+    }
+
+    void finish(Throwable failure) {
+        synchronized (this) {
+            runner = null;
+        }
+        // an interrupt from a late cancel must not reach the next job of the thread
+        Thread.interrupted();
+
+        if (failure == null) {
+            state.set(State.SUCCEEDED);
+            result.complete(null);
+        } else if (cancelRequested) {
+            state.set(State.CANCELLED);
+            result.cancel(false);
+        } else {
+            state.set(State.FAILED);
+            result.completeExceptionally(failure);
+        }
+    }
+
+    ArchiveListener getListener() {
+        return progress;
+    }
+
+    /**
+     * Counts progress and stops the job once it is cancelled
+     */
+    private final class Progress implements ArchiveListener {
+        @Override
+        public void entryWritten(String name, long size) {
+            entries.increment();
+            checkCancelled();
+        }
+
+        @Override
+        public void entryRead(String name, long size) {
+            entries.increment();
+            checkCancelled();
+        }
+
+        @Override
+        public void bytesWritten(long count) {
+            bytes.add(count);
+            checkCancelled();
+        }
+
+        @Override
+        public void bytesRead(long count) {
+            bytes.add(count);
+            checkCancelled();
+        }
+
+        private void checkCancelled() {
+            if (cancelRequested) {
+                throw new CancellationException("Job " + id + " cancelled");
+            }
+        }
+    }
+}
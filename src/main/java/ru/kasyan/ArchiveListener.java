@@ -0,0 +1,75 @@
+package ru.kasyan;
+
+/**
+ * Receives metrics of archive operations. All methods do nothing by default,
+ * so implementations override only what they need. Callers check for
+ * {@link #NONE} before taking timestamps, so an unset listener costs no
+ * clock reads on the hot path.
+ *
+ * Methods may be called from several threads when an operation runs in
+ * parallel; implementations must be thread-safe in that case.
+ *
+ * @see ArchiveStats
+ */
+public interface ArchiveListener {
+
+    /**
+     * Listener that ignores everything, used when none is set
+     */
+    ArchiveListener NONE = new ArchiveListener() {
+    };
+
+    /**
+     * Stages of processing one entry that are timed separately
+     */
+    enum Phase {
+        /** reading file attributes while scanning the input tree */
+        STAT,
+        /** opening a source file or creating an extracted file */
+        OPEN,
+        /** moving entry bodies between files and the archive */
+        COPY,
+        /** encoding or decoding an entry header */
+        HEADER,
+        /** writing or skipping the padding after an entry body */
+        PADDING
+    }
+
+    /**
+     * An entry has been written to an archive
+     */
+    default void entryWritten(String name, long size) {
+    }
+
+    /**
+     * An entry header has been read from an archive
+     */
+    default void entryRead(String name, long size) {
+    }
+
+    /**
+     * Archive bytes written, headers and padding included
+     */
+    default void bytesWritten(long count) {
+    }
+
+    /**
+     * Archive bytes read or skipped, headers and padding included
+     */
+    default void bytesRead(long count) {
+    }
+
+    /**
+     * Time spent in a phase by one call
+     */
+    default void phase(Phase phase, long nanos) {
+    }
+
+    /**
+     * Number of items waiting between the reading and the writing side of a
+     * parallel or pipelined operation, sampled whenever the writer takes one
+     * and, where the writer also queues the work, whenever it adds one
+     */
+    default void queueDepth(int depth) {
+    }
+}
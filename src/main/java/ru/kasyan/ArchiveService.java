@@ -0,0 +1,242 @@
+package ru.kasyan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs many archive and extract jobs with bounded threads and memory.
+ *
+ * Jobs run on a fixed number of threads. Waiting jobs are started by
+ * priority, higher first, and in submission order within a priority. A
+ * waiting job gains one priority level for every aging interval it has
+ * waited, so a steady flow of higher priority jobs delays a lower one by at
+ * most the difference of their priorities times the interval instead of
+ * keeping it waiting for good. Every
+ * running job takes one direct buffer of {@link #BUFFER_SIZE} bytes from a
+ * pool shared by all jobs, for batching the archive writes or copying the
+ * extracted files; no more buffers than the memory cap allows are ever
+ * allocated, and jobs wait for a free one beyond that. Each job gets a fresh
+ * {@link Archiver} from the factory, whose listener is replaced by the
+ * progress tracking of the job.
+ *
+ * The memory cap covers only these shared buffers. Archivers created with
+ * the default factory allocate nothing else of note, but one configured for
+ * parallel or pipelined reading, or for task-per-file extraction, holds its
+ * own memory on top, see the constructor taking the factory.
+ */
+public class ArchiveService implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveService.class);
+
+    static final int BUFFER_SIZE = BatchingChannelOutputStream.DEFAULT_BATCH;
+    static final long DEFAULT_AGING_MILLIS = 1000;
+
+    private final ThreadPoolExecutor executor;
+    private final BufferPool buffers;
+    private final Supplier<Archiver> archivers;
+    private final AtomicLong sequence = new AtomicLong();
+    private final long agingNanos;
+
+    /**
+     * @param threads   number of jobs running at the same time
+     * @param memoryCap bytes of buffers shared by the running jobs, at least
+     *                  one buffer is allocated
+     */
+    public ArchiveService(int threads, long memoryCap) {
+        this(threads, memoryCap, Archiver::new);
+    }
+
+    /**
+     * Archivers from the factory keep their own settings, including the memory
+     * those settings take beyond the buffer of the service: every running job
+     * may additionally hold up to the {@link Archiver#setBufferBudget(long)
+     * buffer budget} with {@link Archiver#setThreads(int) threads} above one or
+     * {@link Archiver#setPipelined(boolean) pipelining}, and up to
+     * {@code maxOpenFiles} file bodies of at most 64 KB each with
+     * {@link Archiver#setMaxOpenFiles(int) task-per-file extraction}. Size the
+     * memory cap and the threads of the service with that in mind.
+     *
+     * @param archivers creates the configured {@link Archiver} of each job
+     */
+    public ArchiveService(int threads, long memoryCap, Supplier<Archiver> archivers) {
+        this(threads, memoryCap, archivers, DEFAULT_AGING_MILLIS);
+    }
+
+    /**
+     * @param agingMillis waiting time that raises a queued job by one priority
+     *                    level; {@code Long.MAX_VALUE} keeps the priorities
+     *                    strict, under which lower priority jobs may wait as
+     *                    long as higher ones keep coming
+     */
+    public ArchiveService(int threads, long memoryCap, Supplier<Archiver> archivers, long agingMillis) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (agingMillis < 1) {
+            throw new IllegalArgumentException("agingMillis must be positive: " + agingMillis);
+        }
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        this.buffers = new BufferPool(memoryCap, BUFFER_SIZE);
+        this.archivers = archivers;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), new JobThreadFactory());
+    }
+
+    /**
+     * Queues the creation of {@code <pathToArchive>/<tarName>.tar}
+     *
+     * @see Archiver#addToArchive(List, String, String)
+     */
+    public ArchiveJob submitArchive(List<String> fileList, String pathToArchive, String tarName, int priority) {
+        List<String> files = new ArrayList<>(fileList);
+        return submit("archive " + tarName, priority,
+                (archiver, job) -> archiver.addToArchive(files, pathToArchive, tarName));
+    }
+
+    /**
+     * Queues the extraction of the archive into the folder
+     *
+     * @see Archiver#extractArchive(String, String)
+     */
+    public ArchiveJob submitExtract(String pathToArchive, String destFolder, int priority) {
+        File archive = new File(pathToArchive);
+        return submit("extract " + archive.getName(), priority, (archiver, job) -> {
+            // bytes read from a compressed archive are counted uncompressed
+            if (archiver.codecFor(archive) == null) {
+                job.setTotalBytes(archive.length());
+            }
+            archiver.extractArchive(pathToArchive, destFolder);
+        });
+    }
+
+    /**
+     * Number of buffers the memory cap allows, which also bounds the jobs
+     * running at once
+     */
+    public int getBufferCapacity() {
+        return buffers.getCapacity();
+    }
+
+    /**
+     * Number of jobs waiting for a thread
+     */
+    public int getQueuedJobs() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting jobs, cancels the queued ones and waits for the
+     * running ones to finish
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        List<Runnable> queued = new ArrayList<>();
+        executor.getQueue().drainTo(queued);
+        for (Runnable task : queued) {
+            ((JobTask) task).job.cancel();
+        }
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for running jobs");
+        }
+    }
+
+    private ArchiveJob submit(String description, int priority, JobBody body) {
+        ArchiveJob job = new ArchiveJob(sequence.getAndIncrement(), description, priority);
+        try {
+            executor.execute(new JobTask(job, body));
+        } catch (RejectedExecutionException e) {
+            job.cancel();
+        }
+        return job;
+    }
+
+    private interface JobBody {
+        void run(Archiver archiver, ArchiveJob job) throws IOException;
+    }
+
+    /**
+     * Orders the queue by priority raised with the time waited, then by
+     * submission
+     */
+    private final class JobTask implements Runnable, Comparable<JobTask> {
+        final ArchiveJob job;
+        final JobBody body;
+        final long queuedAt = System.nanoTime();
+
+        JobTask(ArchiveJob job, JobBody body) {
+            this.job = job;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            if (!job.start()) {
+                return;
+            }
+            LOG.info("Starting {}", job);
+            ByteBuffer buffer = null;
+            Throwable failure = null;
+            try {
+                buffer = buffers.acquire();
+                Archiver archiver = archivers.get();
+                archiver.setListener(job.getListener());
+                archiver.setBuffer(buffer);
+                body.run(archiver, job);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                if (buffer != null) {
+                    buffers.release(buffer);
+                }
+            }
+            job.finish(failure);
+            LOG.info("Finished {}", job);
+        }
+
+        @Override
+        public int compareTo(JobTask other) {
+            // this job goes first when its priority lead, in waiting time, is more
+            // than it was queued after the other; both age alike, so the order of
+            // two queued jobs never changes and the queue stays sorted
+            long lead = (long) job.getPriority() - other.job.getPriority();
+            long leadNanos;
+            try {
+                leadNanos = Math.multiplyExact(lead, agingNanos);
+            } catch (ArithmeticException e) {
+                leadNanos = lead < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            int byRank = Long.compare(queuedAt - other.queuedAt, leadNanos);
+            return byRank != 0 ? byRank : Long.compare(job.getId(), other.job.getId());
+        }
+    }
+
+    private static final class JobThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "archive-job-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
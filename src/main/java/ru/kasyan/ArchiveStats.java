@@ -0,0 +1,119 @@
+package ru.kasyan;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ArchiveListener} that sums the reported metrics. Safe to share
+ * between threads; throughput is measured from the creation of the instance
+ * or the last {@link #reset()}.
+ */
+public class ArchiveStats implements ArchiveListener {
+    private final LongAdder entriesWritten = new LongAdder();
+    private final LongAdder entriesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile long started = System.nanoTime();
+
+    public ArchiveStats() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+    }
+
+    @Override
+    public void entryWritten(String name, long size) {
+        entriesWritten.increment();
+    }
+
+    @Override
+    public void entryRead(String name, long size) {
+        entriesRead.increment();
+    }
+
+    @Override
+    public void bytesWritten(long count) {
+        bytesWritten.add(count);
+    }
+
+    @Override
+    public void bytesRead(long count) {
+        bytesRead.add(count);
+    }
+
+    @Override
+    public void phase(Phase phase, long nanos) {
+        phaseNanos.get(phase).add(nanos);
+    }
+
+    @Override
+    public void queueDepth(int depth) {
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    public long getEntriesWritten() {
+        return entriesWritten.sum();
+    }
+
+    public long getEntriesRead() {
+        return entriesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Total time spent in the phase in nanoseconds, summed over all threads
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos.get(phase).sum();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Bytes read and written per second since creation or the last reset
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - started;
+        return elapsed <= 0 ? 0 : (getBytesRead() + getBytesWritten()) * 1e9 / elapsed;
+    }
+
+    public void reset() {
+        entriesWritten.reset();
+        entriesRead.reset();
+        bytesWritten.reset();
+        bytesRead.reset();
+        for (LongAdder nanos : phaseNanos.values()) {
+            nanos.reset();
+        }
+        maxQueueDepth.set(0);
+        started = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("entries written=").append(getEntriesWritten())
+                .append(", entries read=").append(getEntriesRead())
+                .append(", bytes written=").append(getBytesWritten())
+                .append(", bytes read=").append(getBytesRead())
+                .append(", max queue=").append(getMaxQueueDepth());
+        for (Phase phase : Phase.values()) {
+            sb.append(", ").append(phase.name().toLowerCase()).append("=")
+                    .append(getPhaseNanos(phase) / 1000000).append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -4,7 +4,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /**
  * Created by Kasyanenko Konstantin
@@ -12,81 +26,716 @@ import java.util.List;
  */
 public class Archiver {
     private static final int BUFFER = 2048;
+    private static final int COPY_BUFFER = 64 * 1024;
     private static final Logger LOG = LoggerFactory.getLogger(Archiver.class);
 
+    /**
+     * Entry of an incremental archive listing the names deleted since the previous run, one per line
+     */
+    public static final String DELETED_ENTRY = ".archiver-deleted";
+
+    private boolean writeIndex;
+    private int threads = 1;
+    private long bufferBudget = 64L * 1024 * 1024;
+    private CompressionCodec codec;
+    private boolean deduplicate;
+    private boolean pipelined;
+    private int maxOpenFiles;
+    private boolean sparse;
+    private ByteBuffer buffer;
+    private ArchiveListener listener = ArchiveListener.NONE;
+
+    /**
+     * Enables writing of the {@link TarIndex} sidecar next to created archives
+     */
+    public void setWriteIndex(boolean writeIndex) {
+        this.writeIndex = writeIndex;
+    }
+
+    /**
+     * Number of threads used to scan and read files while creating an archive
+     * and to write files while extracting one.
+     * With more than one thread files are pre-read in parallel and written
+     * in the same order as by a single thread, so the archive is identical.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Upper bound in bytes for file contents held in memory ahead of the archive
+     * writer, both for parallel pre-reading and for the pipelined buffer pool
+     */
+    public void setBufferBudget(long bufferBudget) {
+        if (bufferBudget < 1) {
+            throw new IllegalArgumentException("bufferBudget must be positive: " + bufferBudget);
+        }
+        this.bufferBudget = bufferBudget;
+    }
+
+    /**
+     * Compresses created archives with the codec, e.g. {@link GzipCodec} or
+     * {@link ParallelGzipCodec}; null creates plain ".tar" files. Extraction
+     * uses the codec as well and detects gzip by itself when no codec is set.
+     */
+    public void setCodec(CompressionCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Stores files whose content was already archived as hard links to the
+     * first copy instead of writing the content again. Deduplication reads
+     * files on a single thread regardless of {@link #setThreads(int)}.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Reads files on a separate thread into a pool of reusable buffers while
+     * the archive is written, so reading and writing overlap. The pool never
+     * holds more than the buffer budget. Takes precedence over
+     * {@link #setThreads(int)} for reading files, but not over deduplication.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Extracts with one task per file, on virtual threads where the runtime
+     * has them, for archives of many small files. At most {@code maxOpenFiles}
+     * files are written at once; 0 turns the mode off. Takes precedence over
+     * {@link #setThreads(int)} when extracting.
+     */
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        if (maxOpenFiles < 0) {
+            throw new IllegalArgumentException("maxOpenFiles must not be negative: " + maxOpenFiles);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Stores files with holes of at least one 4 KB block as sparse entries in
+     * the GNU sparse format 1.0, which GNU tar and bsdtar restore with holes.
+     * Holes are found by reading each file of 64 KB and more before it is
+     * archived, so files without holes are read twice. Sparse files are
+     * written on a single thread; pipelining and {@link #setThreads(int)} are
+     * ignored, deduplication takes precedence.
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * Reports entries, bytes, phase timings and queue depths of archive
+     * operations to the listener, e.g. an {@link ArchiveStats}; null removes it
+     */
+    public void setListener(ArchiveListener listener) {
+        this.listener = listener == null ? ArchiveListener.NONE : listener;
+    }
+
+    /**
+     * Uses the buffer for batching archive writes and copying extracted files
+     * instead of allocating one per operation, e.g. a buffer of the pool
+     * shared by an {@link ArchiveService}
+     */
+    void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
     public void addToArchive(List<String> fileList, String pathToArchive, String tarName) throws IOException {
-        FileOutputStream dest = new FileOutputStream(new File(pathToArchive, tarName + ".tar"));
-        TarOutputStream out = new TarOutputStream(new BufferedOutputStream(dest));
-        for (String file : fileList) {
-            tarFolder(null, file, out);
+        TarOutputStream out = openArchive(pathToArchive, tarName);
+
+        try {
+            List<Source> sources = collectSources(fileList);
+            if (deduplicate) {
+                DedupWriter dedup = new DedupWriter();
+                for (Source source : sources) {
+                    Entry entry = source.toEntry();
+                    if (entry.isDirectory()) {
+                        writeEntry(source, entry, out);
+                    } else if (dedup.write(entry, out)) {
+                        LOG.info("Linking: {} -> {}", source.name, entry.getLinkName());
+                    } else {
+                        LOG.info("Adding: {}", source.name);
+                    }
+                }
+            } else if (pipelined && !sparse) {
+                new PipelinedArchiveWriter(bufferBudget, listener).write(sources, out);
+            } else if (threads > 1 && !sparse) {
+                new ParallelArchiveWriter(threads, bufferBudget, listener).write(sources, out);
+            } else {
+                for (Source source : sources) {
+                    writeEntry(source, out);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.abort();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
         }
         out.close();
     }
 
+    /**
+     * Creates the archive with an {@link AsyncTarWriter} and returns once all
+     * writes are issued; the files are read and the archive written by the
+     * completion handlers on the executor. Only uncompressed archives are
+     * supported; deduplication, sparse detection and the other write modes are
+     * not applied.
+     *
+     * @param executor runs the completion handlers, shared by concurrent jobs;
+     *                 null uses the default pool of asynchronous channels
+     * @return completes with the length of the archive
+     */
+    public CompletableFuture<Long> addToArchiveAsync(List<String> fileList, String pathToArchive, String tarName,
+                                                     ExecutorService executor) throws IOException {
+        if (codec != null) {
+            throw new IOException("Asynchronous writing supports only uncompressed archives");
+        }
+        List<Source> sources = collectSources(fileList);
+
+        File archive = new File(pathToArchive, tarName + ".tar");
+        AsyncTarWriter writer = new AsyncTarWriter(archive, executor, AsyncTarWriter.DEFAULT_MAX_IN_FLIGHT);
+        writer.setListener(listener);
+        if (writeIndex) {
+            writer.enableIndex(TarIndex.sidecarFor(archive));
+        } else {
+            dropSidecar(archive);
+        }
+        for (Source source : sources) {
+            LOG.info("Adding: {}", source.name);
+            writer.write(source.toEntry(), source.file);
+        }
+        return writer.finish();
+    }
+
+    /**
+     * Archives only the files that are new or differ in size, modification
+     * time or mode from the previous manifest. Names present in the previous
+     * manifest but gone from the tree are stored in the {@link #DELETED_ENTRY}
+     * entry and removed again when the archive is extracted.
+     *
+     * @param previous manifest of the previous run, null for a full archive
+     * @return the manifest of the current tree to pass to the next run
+     */
+    public Manifest addToArchiveIncremental(List<String> fileList, String pathToArchive, String tarName,
+                                            Manifest previous) throws IOException {
+        if (previous == null) {
+            previous = new Manifest();
+        }
+        Manifest current = new Manifest();
+        TarOutputStream out = openArchive(pathToArchive, tarName);
+
+        try {
+            for (Source source : collectSources(fileList)) {
+                Entry entry = source.toEntry();
+                current.put(new IndexEntry(entry, -1, -1));
+                if (previous.isUnchanged(entry)) {
+                    continue;
+                }
+                writeEntry(source, entry, out);
+            }
+
+            StringBuilder deleted = new StringBuilder();
+            for (String name : previous.getNames()) {
+                if (current.get(name) == null) {
+                    deleted.append(name).append('\n');
+                }
+            }
+            if (deleted.length() > 0) {
+                byte[] list = deleted.toString().getBytes(StandardCharsets.UTF_8);
+                Entry entry = new Entry(Header.createHeader(DELETED_ENTRY, list.length,
+                        System.currentTimeMillis() / 1000, false, 0644));
+                out.putNextEntry(entry);
+                out.write(list);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.abort();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        // the manifest describes the archive only once it is complete
+        out.close();
+        return current;
+    }
+
+    /**
+     * Appends files to an existing uncompressed archive, writing only the new
+     * data. Files whose entry name is already in the archive are skipped,
+     * unless {@code replace} is set and the file differs in size, modification
+     * time or mode; then the newer version is appended and shadows the old
+     * entry on extraction. A missing archive is created. If writing fails the
+     * archive is cut back to the entries it had before.
+     *
+     * @return number of entries appended
+     */
+    public int appendToArchive(List<String> fileList, String pathToArchive, boolean replace) throws IOException {
+        File archive = new File(pathToArchive);
+        if (archive.length() > 0 && codecFor(archive) != null) {
+            throw new IOException("Cannot append to compressed archive " + pathToArchive);
+        }
+
+        TarOutputStream out = new TarOutputStream(archive, true);
+        out.setListener(listener);
+        if (writeIndex) {
+            out.enableIndex(TarIndex.sidecarFor(archive));
+        } else {
+            dropSidecar(archive);
+        }
+        Manifest existing = new Manifest();
+        for (IndexEntry entry : out.getExistingEntries()) {
+            existing.put(entry);
+        }
+
+        int count = 0;
+        try {
+            for (Source source : collectSources(fileList)) {
+                Entry entry = source.toEntry();
+                if (existing.get(entry.getName()) != null && (!replace || existing.isUnchanged(entry))) {
+                    continue;
+                }
+                writeEntry(source, entry, out);
+                count++;
+            }
+        } catch (IOException | RuntimeException e) {
+            // puts the archive back the way it was before this call
+            try {
+                out.abort();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        out.close();
+        return count;
+    }
+
+    /**
+     * Writes the entries of an existing archive to a new one without extracting
+     * them. The transform sees every entry in archive order and returns the
+     * entry to write, possibly changed with {@link Entry#setName(String)} and
+     * other setters, or null to drop it. Only headers are rewritten; bodies are
+     * copied as they are. Hard links keep their target names, a transform that
+     * renames link targets should retarget the links with
+     * {@link Entry#setHardLink(String)} as well.
+     *
+     * @return number of entries written
+     */
+    public int transformArchive(String sourceArchive, String pathToArchive, String tarName,
+                                UnaryOperator<Entry> transform) throws IOException {
+        TarOutputStream out = openArchive(pathToArchive, tarName);
+        int count;
+        try {
+            count = copyEntries(new File(sourceArchive), out, transform);
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.abort();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        out.close();
+        return count;
+    }
+
+    /**
+     * Concatenates the entries of the archives into a new archive in the given
+     * order, so that an entry of a later archive wins over an entry with the
+     * same name from an earlier one when extracting. Each source is read once.
+     *
+     * @return number of entries written
+     */
+    public int mergeArchives(List<String> sourceArchives, String pathToArchive, String tarName) throws IOException {
+        TarOutputStream out = openArchive(pathToArchive, tarName);
+        int count = 0;
+        try {
+            for (String source : sourceArchives) {
+                count += copyEntries(new File(source), out, UnaryOperator.identity());
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.abort();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        out.close();
+        return count;
+    }
+
+    /**
+     * Plain archives are read through an unbuffered file stream so that entry
+     * bodies can be transferred channel to channel
+     */
+    private int copyEntries(File archive, TarOutputStream out, UnaryOperator<Entry> transform) throws IOException {
+        byte[] magic = new byte[2];
+        boolean gzip;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(archive))) {
+            in.readFully(magic);
+            gzip = GzipCodec.isGzip(magic);
+        } catch (EOFException e) {
+            gzip = false;
+        }
+        InputStream in = !gzip ? new FileInputStream(archive)
+                : (codec != null ? codec : new GzipCodec()).decompress(new BufferedInputStream(new FileInputStream(archive)));
+
+        int count = 0;
+        try (TarInputStream tis = new TarInputStream(in)) {
+            tis.setListener(listener);
+            Entry entry;
+            while ((entry = tis.getNextEntry()) != null) {
+                Entry result = transform.apply(entry);
+                if (result == null) {
+                    continue;
+                }
+                LOG.info("Copying: {}", result.getName());
+                out.putNextEntry(result);
+                if (!result.isDirectory() && result.getSize() > 0) {
+                    tis.copyEntryTo(out);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private TarOutputStream openArchive(String pathToArchive, String tarName) throws IOException {
+        if (codec != null) {
+            File archive = new File(pathToArchive, tarName + ".tar" + codec.getExtension());
+            TarOutputStream out = new TarOutputStream(codec.compress(new BufferedOutputStream(new FileOutputStream(archive))));
+            out.setListener(listener);
+            return out;
+        }
+
+        File archive = new File(pathToArchive, tarName + ".tar");
+        TarOutputStream out = buffer != null ? new TarOutputStream(archive, buffer) : new TarOutputStream(archive);
+        out.setListener(listener);
+        if (writeIndex) {
+            out.enableIndex(TarIndex.sidecarFor(archive));
+        } else {
+            dropSidecar(archive);
+        }
+        return out;
+    }
+
+    /**
+     * Removes the sidecar index of an archive that is written without one,
+     * which would describe the archive as it was before
+     */
+    private static void dropSidecar(File archive) throws IOException {
+        Files.deleteIfExists(TarIndex.sidecarFor(archive).toPath());
+    }
+
+    private List<Source> collectSources(List<String> fileList) throws IOException {
+        long start = startPhase();
+        List<Source> sources = new FileTreeScanner(threads).scan(fileList);
+        endPhase(ArchiveListener.Phase.STAT, start);
+        return sources;
+    }
+
+    /**
+     * Returns the start time of a phase, or 0 without reading the clock when no listener is set
+     */
+    private long startPhase() {
+        return listener == ArchiveListener.NONE ? 0 : System.nanoTime();
+    }
+
+    private void endPhase(ArchiveListener.Phase phase, long start) {
+        if (listener != ArchiveListener.NONE) {
+            listener.phase(phase, System.nanoTime() - start);
+        }
+    }
+
     public void extractArchive(String pathToArchive, String destFolder) throws IOException {
-        TarInputStream tis = new TarInputStream(new BufferedInputStream(new FileInputStream(pathToArchive)));
-        File folderTo = new File(destFolder);
-        extract(tis, folderTo.getAbsolutePath());
+        File archive = new File(pathToArchive);
+        CompressionCodec archiveCodec = codecFor(archive);
+        if (threads > 1 && archiveCodec == null && maxOpenFiles == 0) {
+            new ParallelExtractor(threads).extract(archive, new File(destFolder).getAbsoluteFile());
+            return;
+        }
+
+        // a direct buffer is filled from the channel of an unbuffered stream
+        TarInputStream input = archiveCodec == null
+                ? buffer != null && buffer.isDirect() ? new TarInputStream(new FileInputStream(archive)) : new TarInputStream(archive)
+                : new TarInputStream(archiveCodec.decompress(new BufferedInputStream(new FileInputStream(archive))));
+        input.setListener(listener);
+        try (TarInputStream tis = input) {
+            File folderTo = new File(destFolder);
+            if (maxOpenFiles > 0) {
+                new TaskPerFileExtractor(maxOpenFiles).extract(tis, folderTo.getAbsoluteFile());
+            } else {
+                extract(tis, folderTo.getAbsolutePath());
+            }
+        }
     }
 
-    private void tarFolder(String parent, String path, TarOutputStream out) throws IOException {
-        BufferedInputStream origin = null;
-        File f = new File(path);
-        String files[] = f.list();
+    /**
+     * Lists the entries of the archive without reading their contents. Plain
+     * archives are walked by seeking from header to header.
+     */
+    public List<Entry> list(String pathToArchive) throws IOException {
+        File archive = new File(pathToArchive);
+        CompressionCodec archiveCodec = codecFor(archive);
+        InputStream in = archiveCodec == null ? new FileInputStream(archive)
+                : archiveCodec.decompress(new BufferedInputStream(new FileInputStream(archive)));
 
-        if (files == null) {
-            files = new String[1];
-            files[0] = f.getName();
+        List<Entry> entries = new ArrayList<>();
+        try (TarInputStream tis = new TarInputStream(in)) {
+            tis.setListener(listener);
+            Entry entry;
+            while ((entry = tis.getNextEntry()) != null) {
+                entries.add(entry);
+            }
         }
+        return entries;
+    }
 
-        parent = ((parent == null) ? (f.isFile()) ? "" : f.getName() + "/" : parent + f.getName() + "/");
+    /**
+     * Returns the codec the archive is read with, or null if it is not compressed
+     */
+    CompressionCodec codecFor(File archive) throws IOException {
+        if (codec != null) {
+            return codec;
+        }
+        byte[] magic = new byte[2];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(archive))) {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            return null;
+        }
+        return GzipCodec.isGzip(magic) ? new GzipCodec() : null;
+    }
 
-        for (int i = 0; i < files.length; i++) {
-            LOG.info("Adding: " + files[i]);
-            File fileToEntry = f;
-            byte data[] = new byte[BUFFER];
+    /**
+     * Extracts a single entry without reading the rest of the archive
+     *
+     * @return false if the archive has no entry with this name
+     */
+    public boolean extractFile(String pathToArchive, String entryName, String destFolder) throws IOException {
+        File archive = new File(pathToArchive);
+        if (codecFor(archive) != null) {
+            return extractCompressed(archive, entryName, false, destFolder) > 0;
+        }
 
-            if (f.isDirectory()) {
-                fileToEntry = new File(f, files[i]);
+        try (TarReader reader = new TarReader(archive)) {
+            IndexEntry entry = reader.getEntry(entryName);
+            if (entry == null) {
+                return false;
             }
+            extractEntry(reader, entry, destFolder);
+            return true;
+        }
+    }
 
-            if (fileToEntry.isDirectory()) {
-                String[] fl = fileToEntry.list();
-                if (fl != null && fl.length != 0) {
-                    tarFolder(parent, fileToEntry.getPath(), out);
+    /**
+     * Extracts the entry of the path, typically a directory, and every entry
+     * below it. Only the entries of the subtree are read from plain and
+     * seekable archives; the path is matched by whole segments, so "a/b"
+     * does not take in "a/bc".
+     *
+     * @return the number of entries extracted
+     */
+    public int extractSubtree(String pathToArchive, String path, String destFolder) throws IOException {
+        File archive = new File(pathToArchive);
+        if (codecFor(archive) != null) {
+            return extractCompressed(archive, path, true, destFolder);
+        }
+
+        try (TarReader reader = new TarReader(archive)) {
+            List<IndexEntry> entries = reader.getEntries(path);
+            for (IndexEntry entry : entries) {
+                extractEntry(reader, entry, destFolder);
+            }
+            return entries.size();
+        }
+    }
+
+    private static void extractEntry(TarReader reader, IndexEntry entry, String destFolder) throws IOException {
+        LOG.info("Extracting: {}", entry.getName());
+
+        File target = new File(destFolder, entry.getName());
+        if (entry.getLinkFlag() == Header.LF_LINK) {
+            String linkName = reader.readEntry(entry).getLinkName();
+            IndexEntry linked = reader.getEntry(linkName);
+            if (linked == null) {
+                throw new IOException("Link target " + linkName + " of " + entry.getName() + " not found");
+            }
+            entry = linked;
+        }
+        if (entry.isDirectory()) {
+            target.mkdirs();
+            return;
+        }
+        target.getParentFile().mkdirs();
+        if (entry.isSparse()) {
+            SparseFiles.extract(reader.getChannel(), entry, target);
+            return;
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            FileChannel src = reader.getChannel();
+            long done = 0;
+            while (done < entry.getSize()) {
+                done += src.transferTo(entry.getDataOffset() + done, entry.getSize() - done, fos.getChannel());
+            }
+        }
+    }
+
+    /**
+     * Extracts the entry of the name, or its whole subtree, from a compressed
+     * archive. Uses the chunk index of archives written with
+     * {@link SeekableGzipCodec}, other compressed archives are decompressed
+     * up to the last entry.
+     *
+     * @return the number of entries extracted
+     */
+    private int extractCompressed(File archive, String name, boolean subtree, String destFolder) throws IOException {
+        if (SeekableTarGzReader.isSeekable(archive)) {
+            try (SeekableTarGzReader reader = new SeekableTarGzReader(archive)) {
+                List<IndexEntry> entries;
+                if (subtree) {
+                    entries = reader.getEntries(name);
                 } else {
-                    Entry entry = new Entry(fileToEntry, parent + files[i] + "/");
-                    out.putNextEntry(entry);
+                    IndexEntry entry = reader.getEntry(name);
+                    entries = entry == null ? Collections.emptyList() : Collections.singletonList(entry);
                 }
-                continue;
+                for (IndexEntry entry : entries) {
+                    LOG.info("Extracting: {}", entry.getName());
+
+                    File target = new File(destFolder, entry.getName());
+                    if (entry.isDirectory()) {
+                        target.mkdirs();
+                        continue;
+                    }
+                    target.getParentFile().mkdirs();
+                    try (InputStream in = reader.open(entry)) {
+                        if (entry.isSparse()) {
+                            SparseFiles.extract(in, entry.getRealSize(), target);
+                        } else {
+                            copy(in, target);
+                        }
+                    }
+                }
+                return entries.size();
             }
+        }
 
-            FileInputStream fi = new FileInputStream(fileToEntry);
-            origin = new BufferedInputStream(fi);
-            Entry entry = new Entry(fileToEntry, parent + files[i]);
-            out.putNextEntry(entry);
+        int found = 0;
+        try (TarInputStream tis = new TarInputStream(codecFor(archive).decompress(
+                new BufferedInputStream(new FileInputStream(archive))))) {
+            Entry entry;
+            while ((entry = tis.getNextEntry()) != null) {
+                if (subtree ? !PathTrie.isUnder(entry.getName(), name) : !entry.getName().equals(name)) {
+                    continue;
+                }
+                LOG.info("Extracting: {}", entry.getName());
+                File target = new File(destFolder, entry.getName());
+                if (entry.isDirectory()) {
+                    target.mkdirs();
+                } else if (entry.isSparse()) {
+                    target.getParentFile().mkdirs();
+                    SparseFiles.extract(tis, entry.getRealSize(), target);
+                } else {
+                    target.getParentFile().mkdirs();
+                    copy(tis, target);
+                }
+                found++;
+            }
+        }
+        return found;
+    }
 
+    private static void copy(InputStream in, File target) throws IOException {
+        try (OutputStream dest = new FileOutputStream(target)) {
+            byte[] data = new byte[BUFFER];
             int count;
+            while ((count = in.read(data)) != -1) {
+                dest.write(data, 0, count);
+            }
+        }
+    }
+
+    private void writeEntry(Source source, TarOutputStream out) throws IOException {
+        writeEntry(source, source.toEntry(), out);
+    }
 
-            while ((count = origin.read(data)) != -1) {
-                out.write(data, 0, count);
+    private void writeEntry(Source source, Entry entry, TarOutputStream out) throws IOException {
+        LOG.info("Adding: {}", source.name);
+        if (entry.isDirectory()) {
+            out.putNextEntry(entry);
+            return;
+        }
+
+        long start = startPhase();
+        try (FileInputStream origin = new FileInputStream(source.file)) {
+            endPhase(ArchiveListener.Phase.OPEN, start);
+            FileChannel channel = origin.getChannel();
+            long[] segments = sparse && entry.getSize() >= SparseFiles.MIN_SIZE
+                    ? SparseFiles.scan(channel, entry.getSize()) : null;
+            if (segments != null) {
+                start = startPhase();
+                SparseFiles.write(entry, segments, channel, out);
+                endPhase(ArchiveListener.Phase.COPY, start);
+                return;
             }
 
-            out.flush();
+            out.putNextEntry(entry);
+            start = startPhase();
+            out.write(channel, 0, entry.getSize());
+            endPhase(ArchiveListener.Phase.COPY, start);
+        }
+    }
 
-            origin.close();
+    /**
+     * A file or empty directory to be archived under the given entry name
+     */
+    static final class Source {
+        final File file;
+        final String name;
+        final BasicFileAttributes attrs;
+
+        Source(File file, String name, BasicFileAttributes attrs) {
+            this.file = file;
+            this.name = name;
+            this.attrs = attrs;
+        }
+
+        Entry toEntry() {
+            return new Entry(file, name, attrs);
         }
     }
 
     private void extract(TarInputStream tis, String destFolder) throws IOException {
-        BufferedOutputStream dest = null;
+        ByteBuffer data = buffer != null ? buffer : ByteBuffer.allocate(COPY_BUFFER);
+        Set<String> linked = new HashSet<>();
 
         Entry entry;
         while ((entry = tis.getNextEntry()) != null) {
-            LOG.info("Extracting: " + entry.getName());
-            int count;
-            byte data[] = new byte[BUFFER];
+            if (DELETED_ENTRY.equals(entry.getName())) {
+                applyDeletions(tis, new File(destFolder));
+                continue;
+            }
+            LOG.info("Extracting: {}", entry.getName());
 
+            if (entry.isHardLink()) {
+                File target = new File(destFolder, entry.getName());
+                target.getParentFile().mkdirs();
+                link(target, new File(destFolder, entry.getLinkName()));
+                linked.add(entry.getName());
+                continue;
+            }
             if (entry.isDirectory()) {
                 new File(destFolder + "/" + entry.getName()).mkdirs();
                 continue;
@@ -96,16 +745,81 @@ public class Archiver {
                     new File(destFolder + "/" + entry.getName().substring(0, di)).mkdirs();
                 }
             }
+            if (linked.remove(entry.getName())) {
+                // writing through the link would change the file it shares its data with
+                Files.delete(new File(destFolder, entry.getName()).toPath());
+            }
 
-            FileOutputStream fos = new FileOutputStream(destFolder + "/" + entry.getName());
-            dest = new BufferedOutputStream(fos);
+            if (entry.isSparse()) {
+                long start = startPhase();
+                SparseFiles.extract(tis, entry.getRealSize(), new File(destFolder, entry.getName()));
+                endPhase(ArchiveListener.Phase.COPY, start);
+                continue;
+            }
 
-            while ((count = tis.read(data)) != -1) {
-                dest.write(data, 0, count);
+            long start = startPhase();
+            try (FileOutputStream fos = new FileOutputStream(destFolder + "/" + entry.getName())) {
+                FileChannel dest = fos.getChannel();
+                endPhase(ArchiveListener.Phase.OPEN, start);
+
+                start = startPhase();
+                data.clear();
+                while (tis.read(data) != -1) {
+                    data.flip();
+                    while (data.hasRemaining()) {
+                        dest.write(data);
+                    }
+                    data.clear();
+                }
             }
+            endPhase(ArchiveListener.Phase.COPY, start);
+        }
+    }
 
-            dest.flush();
-            dest.close();
+    /**
+     * Creates a hard link to a file extracted earlier, copying the file where
+     * the file system does not support links
+     */
+    static void link(File target, File existing) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), existing.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(existing.toPath(), target.toPath());
+        }
+    }
+
+    /**
+     * Removes the files listed in a {@link #DELETED_ENTRY} entry from the
+     * destination. The list comes from the archive, so names that resolve
+     * outside the destination are skipped.
+     */
+    static void applyDeletions(InputStream list, File destFolder) throws IOException {
+        applyDeletions(list, destFolder, name -> true);
+    }
+
+    /**
+     * Removes the listed files for which the filter holds, e.g. only those not
+     * extracted again after the list
+     */
+    static void applyDeletions(InputStream list, File destFolder, Predicate<String> filter) throws IOException {
+        Path root = destFolder.toPath().toAbsolutePath().normalize();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(list, StandardCharsets.UTF_8));
+        String name;
+        while ((name = reader.readLine()) != null) {
+            if (name.isEmpty() || !filter.test(name)) {
+                continue;
+            }
+            Path path = root.resolve(name).normalize();
+            if (!path.startsWith(root) || path.equals(root)) {
+                LOG.warn("Skipping deletion outside of {}: {}", destFolder, name);
+                continue;
+            }
+            File target = path.toFile();
+            if (target.isFile() || target.isDirectory() && target.list().length == 0) {
+                LOG.info("Deleting: {}", name);
+                target.delete();
+            }
         }
     }
 
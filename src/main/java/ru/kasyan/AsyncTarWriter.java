@@ -0,0 +1,381 @@
+package ru.kasyan;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes an uncompressed archive through an {@link AsynchronousFileChannel}
+ * without blocking the calling thread.
+ *
+ * The position of every entry is reserved when it is added, in the order of
+ * the calls, so headers and bodies are written at absolute offsets and the
+ * writes of different entries may complete in any order. Padding is not
+ * written: the archive is created empty and the gaps read back as zeros.
+ * Up to {@code maxInFlight} entries are being written at once, each with at
+ * most one body chunk of {@link #CHUNK_SIZE} bytes in memory; further
+ * entries wait in a queue rather than block the caller.
+ *
+ * Completion handlers run on the executor given to the channel, so one small
+ * pool can drive many archives at the same time. Sparse entries are not
+ * supported; bodies are always written as they are.
+ */
+public class AsyncTarWriter {
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    private static final int BLOCK = 512;
+    private static final int EOF_BLOCK = 1024;
+    private static final int COMBINE_THRESHOLD = 64 * 1024;
+
+    private final File archive;
+    private final AsynchronousFileChannel channel;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final List<CompletableFuture<IndexEntry>> entries = new ArrayList<>();
+    private ArchiveListener listener = ArchiveListener.NONE;
+    private TarIndex index;
+    private File indexFile;
+    private long position;
+    private boolean finished;
+
+    public AsyncTarWriter(File archive) throws IOException {
+        this(archive, null, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param executor runs the completion handlers of the archive and its
+     *                 source files; null uses the default thread pool of
+     *                 asynchronous channels
+     */
+    public AsyncTarWriter(File archive, ExecutorService executor, int maxInFlight) throws IOException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.archive = archive;
+        this.channel = AsynchronousFileChannel.open(archive.toPath(),
+                EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+                executor);
+        this.executor = executor;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Records the position of every entry; the index is written to the sidecar
+     * file, if one is given, when the archive is finished
+     */
+    public synchronized TarIndex enableIndex(File sidecar) {
+        if (index == null) {
+            index = new TarIndex();
+        }
+        indexFile = sidecar;
+        return index;
+    }
+
+    /**
+     * Reports written entries and bytes to the listener, from the threads
+     * completing the writes
+     */
+    public void setListener(ArchiveListener listener) {
+        this.listener = listener == null ? ArchiveListener.NONE : listener;
+    }
+
+    /**
+     * Adds an entry whose body is the remaining bytes of the buffer. The
+     * buffer must not be changed until the returned future completes.
+     *
+     * @return completes with the position of the entry once it is written
+     */
+    public CompletableFuture<IndexEntry> write(Entry entry, ByteBuffer body) {
+        if (body.remaining() != entry.getSize()) {
+            throw new IllegalArgumentException("Body of " + body.remaining() + " bytes for entry "
+                    + entry.getName() + " of size " + entry.getSize());
+        }
+        Slot slot = reserve(entry);
+        submit(slot, () -> {
+            if (body.remaining() <= COMBINE_THRESHOLD) {
+                ByteBuffer buf = ByteBuffer.allocate(slot.headers.length + body.remaining());
+                buf.put(slot.headers).put(body.duplicate()).flip();
+                return writeFully(buf, slot.position.getHeaderOffset());
+            }
+            return CompletableFuture.allOf(
+                    writeFully(ByteBuffer.wrap(slot.headers), slot.position.getHeaderOffset()),
+                    writeFully(body.duplicate(), slot.position.getDataOffset()));
+        });
+        return slot.result;
+    }
+
+    /**
+     * Adds an entry whose body is read from the file with an asynchronous
+     * channel, chunk by chunk
+     *
+     * @return completes with the position of the entry once it is written
+     */
+    public CompletableFuture<IndexEntry> write(Entry entry, File source) {
+        Slot slot = reserve(entry);
+        submit(slot, () -> {
+            if (entry.getSize() == 0) {
+                return writeFully(ByteBuffer.wrap(slot.headers), slot.position.getHeaderOffset());
+            }
+            AsynchronousFileChannel src;
+            try {
+                src = AsynchronousFileChannel.open(source.toPath(), EnumSet.of(StandardOpenOption.READ), executor);
+            } catch (IOException e) {
+                return failed(e);
+            }
+
+            CompletableFuture<Void> writes;
+            if (entry.getSize() <= COMBINE_THRESHOLD) {
+                // header and body in a single write
+                ByteBuffer buf = ByteBuffer.allocate(slot.headers.length + (int) entry.getSize());
+                buf.put(slot.headers);
+                writes = readFully(src, buf, 0).thenCompose(v -> {
+                    buf.flip();
+                    return writeFully(buf, slot.position.getHeaderOffset());
+                });
+            } else {
+                ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.min(CHUNK_SIZE, entry.getSize()));
+                writes = CompletableFuture.allOf(
+                        writeFully(ByteBuffer.wrap(slot.headers), slot.position.getHeaderOffset()),
+                        copy(src, buf, 0, entry.getSize(), slot.position.getDataOffset()));
+            }
+            writes.whenComplete((v, e) -> closeQuietly(src));
+            return writes;
+        });
+        return slot.result;
+    }
+
+    /**
+     * Writes the EOF record once all entries are written and closes the
+     * archive; no entries may be added afterwards
+     *
+     * @return completes with the length of the archive, or exceptionally if
+     * any entry failed
+     */
+    public CompletableFuture<Long> finish() {
+        long end;
+        List<CompletableFuture<IndexEntry>> written;
+        TarIndex index;
+        File indexFile;
+        synchronized (this) {
+            if (finished) {
+                throw new IllegalStateException("Archive is already finished");
+            }
+            finished = true;
+            end = position;
+            written = new ArrayList<>(entries);
+            index = this.index;
+            indexFile = this.indexFile;
+        }
+
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(v -> writeFully(ByteBuffer.allocate(EOF_BLOCK), end))
+                .whenComplete((v, e) -> {
+                    Throwable failure = e == null ? null : unwrap(e);
+                    try {
+                        channel.close();
+                        if (failure == null && index != null) {
+                            index.setArchiveLength(end + EOF_BLOCK);
+                            if (indexFile != null) {
+                                index.stamp(archive);
+                                index.write(indexFile);
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        if (failure == null) {
+                            failure = ioe;
+                        }
+                    }
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                    } else {
+                        result.complete(end + EOF_BLOCK);
+                    }
+                });
+        return result;
+    }
+
+    private synchronized Slot reserve(Entry entry) {
+        if (finished) {
+            throw new IllegalStateException("Archive is already finished");
+        }
+        if (entry.isSparse()) {
+            // the body would have to be the sparse map and the data segments
+            throw new IllegalArgumentException("Sparse entry " + entry.getName() + " cannot be written asynchronously");
+        }
+        byte[] headers = encodeHeaders(entry);
+        long headerOffset = position;
+        long dataOffset = headerOffset + headers.length;
+        position = dataOffset + (entry.getSize() + BLOCK - 1) / BLOCK * BLOCK;
+
+        IndexEntry indexEntry = new IndexEntry(entry, headerOffset, dataOffset);
+        if (index != null) {
+            index.add(indexEntry);
+        }
+        Slot slot = new Slot(entry, headers, indexEntry);
+        entries.add(slot.result);
+        return slot;
+    }
+
+    /**
+     * Starts the writes of the entry now if fewer than the limit are in
+     * flight, otherwise once another entry is done
+     */
+    private void submit(Slot slot, WriteTask task) {
+        waiting.add(() -> {
+            CompletableFuture<Void> writes;
+            try {
+                writes = task.start();
+            } catch (RuntimeException e) {
+                writes = failed(e);
+            }
+            writes.whenComplete((v, e) -> {
+                inFlight.release();
+                startWaiting();
+                if (e != null) {
+                    slot.result.completeExceptionally(unwrap(e));
+                } else {
+                    listener.entryWritten(slot.entry.getName(), slot.entry.getSize());
+                    slot.result.complete(slot.position);
+                }
+            });
+        });
+        startWaiting();
+    }
+
+    private void startWaiting() {
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.release();
+            } else {
+                next.run();
+            }
+        }
+    }
+
+    /**
+     * Copies the source chunk by chunk, each chunk written before the next is read
+     */
+    private CompletableFuture<Void> copy(AsynchronousFileChannel src, ByteBuffer buf, long from, long size, long dest) {
+        if (from >= size) {
+            return CompletableFuture.completedFuture(null);
+        }
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), size - from));
+        int length = buf.limit();
+        return readFully(src, buf, from)
+                .thenCompose(v -> {
+                    buf.flip();
+                    return writeFully(buf, dest);
+                })
+                .thenCompose(v -> copy(src, buf, from + length, size, dest + length));
+    }
+
+    private CompletableFuture<Void> readFully(AsynchronousFileChannel src, ByteBuffer buf, long position) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        src.read(buf, position, position, new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer n, Long pos) {
+                if (n < 0) {
+                    done.completeExceptionally(new IOException("Unexpected end of file at " + pos));
+                } else if (buf.hasRemaining()) {
+                    src.read(buf, pos + n, pos + n, this);
+                } else {
+                    done.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Long pos) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    private CompletableFuture<Void> writeFully(ByteBuffer buf, long position) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        channel.write(buf, position, position, new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer n, Long pos) {
+                listener.bytesWritten(n);
+                if (buf.hasRemaining()) {
+                    channel.write(buf, pos + n, pos + n, this);
+                } else {
+                    done.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Long pos) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Extended header, its records and the ustar header of the entry, in
+     * whole blocks
+     */
+    private static byte[] encodeHeaders(Entry entry) {
+        byte[] extended = PaxHeaders.encode(entry.getHeader());
+        int offset = extended == null ? 0 : BLOCK + (extended.length + BLOCK - 1) / BLOCK * BLOCK;
+        byte[] headers = new byte[offset + BLOCK];
+        if (extended != null) {
+            PaxHeaders.extensionEntry(entry, extended.length).writeEntryHeader(headers, 0);
+            System.arraycopy(extended, 0, headers, BLOCK, extended.length);
+        }
+        (entry.isSparse() ? PaxHeaders.sparseStandIn(entry) : entry).writeEntryHeader(headers, offset);
+        return headers;
+    }
+
+    private static CompletableFuture<Void> failed(Throwable e) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the failure that led here is reported instead
+        }
+    }
+
+    private interface WriteTask {
+        CompletableFuture<Void> start();
+    }
+
+    private static final class Slot {
+        final Entry entry;
+        final byte[] headers;
+        final IndexEntry position;
+        final CompletableFuture<IndexEntry> result = new CompletableFuture<>();
+
+        Slot(Entry entry, byte[] headers, IndexEntry position) {
+            this.entry = entry;
+            this.headers = headers;
+            this.position = position;
+        }
+    }
+}
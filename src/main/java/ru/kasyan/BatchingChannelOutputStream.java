@@ -0,0 +1,132 @@
+package ru.kasyan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects everything written into one large reusable direct buffer and
+ * writes it to the channel in a single call once the buffer is full, on
+ * flush and on close. Headers, bodies and padding of many small entries thus
+ * end up in one write instead of several each. Bodies can be read from a
+ * source channel straight into the buffer without a copy through the heap.
+ */
+class BatchingChannelOutputStream extends OutputStream {
+    static final int DEFAULT_BATCH = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer batch;
+
+    BatchingChannelOutputStream(FileChannel channel, int batchSize) {
+        this(channel, ByteBuffer.allocateDirect(batchSize));
+    }
+
+    /**
+     * Batches in the given buffer, e.g. one taken from a {@link BufferPool},
+     * which must not be used elsewhere until the stream is closed
+     */
+    BatchingChannelOutputStream(FileChannel channel, ByteBuffer batch) {
+        this.channel = channel;
+        this.batch = batch;
+        batch.clear();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!batch.hasRemaining()) {
+            drain();
+        }
+        batch.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!batch.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(len, batch.remaining());
+            batch.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer
+     */
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (!batch.hasRemaining()) {
+                drain();
+            }
+            if (src.remaining() <= batch.remaining()) {
+                batch.put(src);
+            } else {
+                int limit = src.limit();
+                src.limit(src.position() + batch.remaining());
+                batch.put(src);
+                src.limit(limit);
+            }
+        }
+    }
+
+    /**
+     * Reads {@code count} bytes of the source channel starting at
+     * {@code position} directly into the batch
+     *
+     * @throws IOException if the source ends early
+     */
+    void transferFrom(FileChannel src, long position, long count) throws IOException {
+        long done = 0;
+        while (done < count) {
+            if (!batch.hasRemaining()) {
+                drain();
+            }
+            int n = (int) Math.min(count - done, batch.remaining());
+            batch.limit(batch.position() + n);
+            int res;
+            try {
+                res = src.read(batch, position + done);
+            } finally {
+                batch.limit(batch.capacity());
+            }
+            if (res < 0) {
+                throw new IOException("Unexpected end of source after " + done + " of " + count + " bytes");
+            }
+            done += res;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the channel without writing what is left in the buffer, for
+     * output that is abandoned after a failure
+     */
+    void discard() throws IOException {
+        batch.clear();
+        channel.close();
+    }
+
+    private void drain() throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,146 @@
+package ru.kasyan;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output cut into independently compressed members so that a reader can
+ * start decompressing at any member.
+ *
+ * {@link TarOutputStream} calls {@link #markBoundary()} before every entry
+ * header, and a new member is started there once the current one holds at
+ * least {@code blockSize} bytes, so members normally start at entry headers.
+ * A single entry larger than the block size is cut inside its body.
+ *
+ * On close the stream appends two more members: the chunk table together with
+ * the {@link TarIndex} of the archive, and a fixed-size empty member whose
+ * gzip extra field points at the index member. Both decompress to nothing the
+ * tar format cares about (the index lands after the end-of-archive blocks), so
+ * the file stays a regular .tar.gz.
+ */
+class BlockGzipOutputStream extends OutputStream {
+    static final int FOOTER_LENGTH = 42;
+    static final long FOOTER_MAGIC = 0x5441524758494458L; // TARGXIDX
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final ByteArrayOutputStream block;
+    private final List<long[]> chunks = new ArrayList<>();
+
+    private TarIndex index;
+    private long compressedOffset;
+    private long uncompressedOffset;
+    private boolean closed;
+
+    BlockGzipOutputStream(OutputStream out, int blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.block = new ByteArrayOutputStream(blockSize);
+    }
+
+    void setIndex(TarIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Starts a new member if the current one is full enough
+     */
+    void markBoundary() throws IOException {
+        if (block.size() >= blockSize) {
+            emitBlock();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block.write(b);
+        if (block.size() >= 2 * blockSize) {
+            emitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, Math.max(1, 2 * blockSize - block.size()));
+            block.write(b, off, n);
+            off += n;
+            len -= n;
+            if (block.size() >= 2 * blockSize) {
+                emitBlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (block.size() > 0) {
+                emitBlock();
+            }
+
+            long indexOffset = compressedOffset;
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            try (DataOutputStream data = new DataOutputStream(new GZIPOutputStream(table))) {
+                data.writeInt(chunks.size());
+                for (long[] chunk : chunks) {
+                    data.writeLong(chunk[0]);
+                    data.writeLong(chunk[1]);
+                }
+                (index != null ? index : new TarIndex()).write(data);
+            }
+            table.writeTo(out);
+            out.write(footer(indexOffset));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void emitBlock() throws IOException {
+        chunks.add(new long[]{compressedOffset, uncompressedOffset});
+
+        ByteArrayOutputStream member = new ByteArrayOutputStream(block.size() / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, GzipCodec.BUFFER)) {
+            block.writeTo(gzip);
+        }
+        member.writeTo(out);
+
+        compressedOffset += member.size();
+        uncompressedOffset += block.size();
+        block.reset();
+    }
+
+    /**
+     * Empty gzip member carrying the index offset in an 'TI' extra subfield
+     */
+    static byte[] footer(long indexOffset) {
+        ByteBuffer buf = ByteBuffer.allocate(FOOTER_LENGTH);
+        buf.put(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+        buf.put(new byte[]{20, 0, 'T', 'I', 16, 0});
+        buf.putLong(indexOffset);
+        buf.putLong(FOOTER_MAGIC);
+        buf.put(new byte[]{3, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        return buf.array();
+    }
+
+    /**
+     * Reads the index offset back from a footer
+     *
+     * @return the offset or -1 if the bytes are not a footer
+     */
+    static long parseFooter(byte[] footer) {
+        ByteBuffer buf = ByteBuffer.wrap(footer);
+        if (footer.length != FOOTER_LENGTH || buf.getShort(0) != 0x1f8b || footer[3] != 4
+                || footer[12] != 'T' || footer[13] != 'I' || buf.getLong(24) != FOOTER_MAGIC) {
+            return -1;
+        }
+        return buf.getLong(16);
+    }
+}
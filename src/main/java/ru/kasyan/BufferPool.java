@@ -0,0 +1,70 @@
+package ru.kasyan;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded set of reusable direct buffers. Buffers are allocated on first use
+ * and kept for reuse, and the pool never allocates more than its budget allows;
+ * {@link #acquire()} blocks until a buffer is released when all are in use.
+ */
+class BufferPool {
+    private final BlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+    private final int capacity;
+    private int allocated;
+
+    /**
+     * @param budget     total bytes the pool may hold, at least one buffer is allocated
+     * @param bufferSize size of a single buffer
+     */
+    BufferPool(long budget, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / bufferSize));
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Takes a cleared buffer, waiting for one to be released if necessary
+     */
+    ByteBuffer acquire() throws InterruptedIOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = allocate();
+        }
+        try {
+            if (buffer == null) {
+                buffer = free.take();
+            }
+            buffer.clear();
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+    }
+
+    private synchronized ByteBuffer allocate() {
+        if (allocated == capacity) {
+            return null;
+        }
+        allocated++;
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns a buffer taken with {@link #acquire()} to the pool
+     */
+    void release(ByteBuffer buffer) {
+        free.add(buffer);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
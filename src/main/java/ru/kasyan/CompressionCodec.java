@@ -0,0 +1,26 @@
+package ru.kasyan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression stage wrapped around the tar stream
+ */
+public interface CompressionCodec {
+
+    /**
+     * Suffix appended to the ".tar" extension, e.g. ".gz"
+     */
+    String getExtension();
+
+    /**
+     * Wraps the archive file stream; closing the returned stream must close {@code out}
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps the archive file stream; closing the returned stream must close {@code in}
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
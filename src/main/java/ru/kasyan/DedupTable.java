@@ -0,0 +1,116 @@
+package ru.kasyan;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash tables over primitive arrays used to find duplicate
+ * file bodies without one object per file: a set of body sizes already seen
+ * and a map from (size, 128-bit digest) to the number of the first entry
+ * with that body.
+ */
+final class DedupTable {
+    private static final long EMPTY = -1;
+
+    private long[] sizeSet = newKeys(1024);
+    private int sizeCount;
+
+    private long[] sizes = newKeys(1024);
+    private long[] digestHi = new long[1024];
+    private long[] digestLo = new long[1024];
+    private int[] refs = new int[1024];
+    private int count;
+
+    boolean sizeSeen(long size) {
+        int mask = sizeSet.length - 1;
+        for (int i = mix(size) & mask; sizeSet[i] != EMPTY; i = (i + 1) & mask) {
+            if (sizeSet[i] == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void addSize(long size) {
+        if (sizeSeen(size)) {
+            return;
+        }
+        if (++sizeCount * 2 > sizeSet.length) {
+            long[] old = sizeSet;
+            sizeSet = newKeys(old.length * 2);
+            for (long s : old) {
+                if (s != EMPTY) {
+                    insertSize(s);
+                }
+            }
+        }
+        insertSize(size);
+    }
+
+    private void insertSize(long size) {
+        int mask = sizeSet.length - 1;
+        int i = mix(size) & mask;
+        while (sizeSet[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        sizeSet[i] = size;
+    }
+
+    /**
+     * @return the reference stored for the body or -1 if it has not been seen
+     */
+    int find(long size, long hi, long lo) {
+        int mask = sizes.length - 1;
+        for (int i = mix(hi ^ size) & mask; sizes[i] != EMPTY; i = (i + 1) & mask) {
+            if (sizes[i] == size && digestHi[i] == hi && digestLo[i] == lo) {
+                return refs[i];
+            }
+        }
+        return -1;
+    }
+
+    void put(long size, long hi, long lo, int ref) {
+        if (find(size, hi, lo) >= 0) {
+            return;
+        }
+        if (++count * 2 > sizes.length) {
+            long[] oldSizes = sizes;
+            long[] oldHi = digestHi;
+            long[] oldLo = digestLo;
+            int[] oldRefs = refs;
+            int length = oldSizes.length * 2;
+            sizes = newKeys(length);
+            digestHi = new long[length];
+            digestLo = new long[length];
+            refs = new int[length];
+            for (int i = 0; i < oldSizes.length; i++) {
+                if (oldSizes[i] != EMPTY) {
+                    insert(oldSizes[i], oldHi[i], oldLo[i], oldRefs[i]);
+                }
+            }
+        }
+        insert(size, hi, lo, ref);
+    }
+
+    private void insert(long size, long hi, long lo, int ref) {
+        int mask = sizes.length - 1;
+        int i = mix(hi ^ size) & mask;
+        while (sizes[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        sizes[i] = size;
+        digestHi[i] = hi;
+        digestLo[i] = lo;
+        refs[i] = ref;
+    }
+
+    private static long[] newKeys(int length) {
+        long[] keys = new long[length];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,101 @@
+package ru.kasyan;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes file entries, replacing bodies that were already written by a hard
+ * link entry pointing at the first copy.
+ *
+ * The body of every written file is hashed with SHA-256 while it is copied
+ * into the archive. A file is hashed in advance only if a body of the same
+ * size has been written before, so unique sizes cost a single read.
+ */
+class DedupWriter {
+    private static final int BUFFER = 64 * 1024;
+
+    private final DedupTable table = new DedupTable();
+    private final List<String> targets = new ArrayList<>();
+    private final MessageDigest digest;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    private long hi;
+    private long lo;
+
+    DedupWriter() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the entry of a regular file, either as a link or with its body
+     *
+     * @return true if the entry was written as a hard link
+     */
+    boolean write(Entry entry, TarOutputStream out) throws IOException {
+        long size = entry.getSize();
+        String name = entry.getName();
+        boolean linkable = size > 0;
+
+        try (FileInputStream in = new FileInputStream(entry.getFile())) {
+            FileChannel channel = in.getChannel();
+
+            if (linkable && table.sizeSeen(size)) {
+                hash(channel, size, null);
+                int ref = table.find(size, hi, lo);
+                if (ref >= 0) {
+                    entry.setHardLink(targets.get(ref));
+                    out.putNextEntry(entry);
+                    return true;
+                }
+                out.putNextEntry(entry);
+                out.write(channel, 0, size);
+            } else {
+                out.putNextEntry(entry);
+                hash(channel, size, out);
+            }
+        }
+
+        if (linkable) {
+            table.addSize(size);
+            table.put(size, hi, lo, targets.size());
+            targets.add(name);
+        }
+        return false;
+    }
+
+    /**
+     * Digests the body, copying it to the archive on the way if {@code out} is given
+     */
+    private void hash(FileChannel channel, long size, TarOutputStream out) throws IOException {
+        digest.reset();
+        long done = 0;
+        while (done < size) {
+            buffer.clear();
+            if (size - done < buffer.capacity()) {
+                buffer.limit((int) (size - done));
+            }
+            int res = channel.read(buffer, done);
+            if (res < 0) {
+                throw new IOException("Unexpected end of file after " + done + " of " + size + " bytes");
+            }
+            digest.update(buffer.array(), 0, res);
+            if (out != null) {
+                out.write(buffer.array(), 0, res);
+            }
+            done += res;
+        }
+
+        byte[] sum = digest.digest();
+        hi = ByteBuffer.wrap(sum, 0, 8).getLong();
+        lo = ByteBuffer.wrap(sum, 8, 8).getLong();
+    }
+}
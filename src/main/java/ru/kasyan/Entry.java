@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.*;
 
@@ -14,7 +16,19 @@ import java.util.*;
 public class Entry {
 	protected File file;
 	protected Header header;
-	private static Map<PosixFilePermission, Integer> posixPermissionToInteger = new HashMap<>();
+	private static Map<PosixFilePermission, Integer> posixPermissionToInteger = new EnumMap<>(PosixFilePermission.class);
+
+	static {
+		posixPermissionToInteger.put(PosixFilePermission.OWNER_READ, 0400);
+		posixPermissionToInteger.put(PosixFilePermission.OWNER_WRITE, 0200);
+		posixPermissionToInteger.put(PosixFilePermission.OWNER_EXECUTE, 0100);
+		posixPermissionToInteger.put(PosixFilePermission.GROUP_READ, 040);
+		posixPermissionToInteger.put(PosixFilePermission.GROUP_WRITE, 020);
+		posixPermissionToInteger.put(PosixFilePermission.GROUP_EXECUTE, 010);
+		posixPermissionToInteger.put(PosixFilePermission.OTHERS_READ, 04);
+		posixPermissionToInteger.put(PosixFilePermission.OTHERS_WRITE, 02);
+		posixPermissionToInteger.put(PosixFilePermission.OTHERS_EXECUTE, 01);
+	}
 
 	private Entry() {
 		this.file = null;
@@ -27,6 +41,29 @@ public class Entry {
 		this.extractTarHeader(entryName);
 	}
 
+	/**
+	 * Creates an entry from attributes read beforehand, without touching the
+	 * file system again
+	 */
+	public Entry(File file, String entryName, BasicFileAttributes attrs) {
+		this.file = file;
+		int permissions = attrs instanceof PosixFileAttributes
+				? toMode(((PosixFileAttributes) attrs).permissions())
+				: standardPermissions(file);
+		this.header = Header.createHeader(entryName, attrs.size(), attrs.lastModifiedTime().toMillis() / 1000,
+				attrs.isDirectory(), permissions);
+	}
+
+	/**
+	 * Creates an entry for content that does not come from a file, e.g. an
+	 * upload of known length
+	 *
+	 * @param modTime last modification time in seconds since the epoch
+	 */
+	public Entry(String entryName, long size, long modTime, int permissions) {
+		this(Header.createHeader(entryName, size, modTime, false, permissions));
+	}
+
 	public Entry(byte[] headerBuf) {
 		this();
 		this.parseTarHeader(headerBuf);
@@ -48,17 +85,16 @@ public class Entry {
 		if (!(it instanceof Entry)) {
 			return false;
 		}
-		return header.name.toString().equals(
-				((Entry) it).header.name.toString());
+		return getName().equals(((Entry) it).getName());
 	}
 
 	@Override
 	public int hashCode() {
-		return header.name.hashCode();
+		return getName().hashCode();
 	}
 
 	public boolean isDescendent(Entry desc) {
-		return desc.header.name.toString().startsWith(header.name.toString());
+		return desc.getName().startsWith(getName());
 	}
 
 	public Header getHeader() {
@@ -66,16 +102,35 @@ public class Entry {
 	}
 
 	public String getName() {
-		String name = header.name.toString();
-		if (header.namePrefix != null && !header.namePrefix.toString().equals("")) {
-			name = header.namePrefix.toString() + "/" + name;
+		if (header.namePrefix == null || header.namePrefix.isEmpty()) {
+			return header.name;
 		}
-
-		return name;
+		return header.namePrefix + "/" + header.name;
 	}
 
+	/**
+	 * Renames the entry, replacing both the name and the prefix field
+	 */
 	public void setName(String name) {
-		header.name = new StringBuffer(name);
+		Header.setName(header, name);
+	}
+
+	public String getLinkName() {
+		return header.linkName;
+	}
+
+	/**
+	 * Turns the entry into a hard link to an entry written earlier in the
+	 * archive. Link entries carry no content.
+	 */
+	public void setHardLink(String target) {
+		header.linkName = target;
+		header.linkFlag = Header.LF_LINK;
+		header.size = 0;
+	}
+
+	public boolean isHardLink() {
+		return header.linkFlag == Header.LF_LINK;
 	}
 
 	public int getUserId() {
@@ -95,19 +150,19 @@ public class Entry {
 	}
 
 	public String getUserName() {
-		return header.userName.toString();
+		return header.userName;
 	}
 
 	public void setUserName(String userName) {
-		header.userName = new StringBuffer(userName);
+		header.userName = userName;
 	}
 
 	public String getGroupName() {
-		return header.groupName.toString();
+		return header.groupName;
 	}
 
 	public void setGroupName(String groupName) {
-		header.groupName = new StringBuffer(groupName);
+		header.groupName = groupName;
 	}
 
 	public void setIds(int userId, int groupId) {
@@ -139,18 +194,31 @@ public class Entry {
 		header.size = size;
 	}
 
+	/**
+	 * Checks if the body of the entry is a sparse map followed by the data
+	 * segments of the file rather than the whole file
+	 */
+	public boolean isSparse() {
+		return header.sparseSize >= 0;
+	}
+
+	/**
+	 * Length of the file the entry extracts to, which differs from the body
+	 * size for sparse entries
+	 */
+	public long getRealSize() {
+		return isSparse() ? header.sparseSize : header.size;
+	}
+
 	/**
 	 * Checks if the org.kamrazafar.jtar entry is a directory
 	 */
 	public boolean isDirectory() {
-		if (this.file != null)
-			return this.file.isDirectory();
-
 		if (header != null) {
 			if (header.linkFlag == Header.LF_DIR)
 				return true;
 
-			if (header.name.toString().endsWith("/"))
+			if (header.name.endsWith("/"))
 				return true;
 		}
 
@@ -169,9 +237,13 @@ public class Entry {
 	 * Calculate checksum
 	 */
 	public long computeCheckSum(byte[] buf) {
+		return computeCheckSum(buf, 0, buf.length);
+	}
+
+	static long computeCheckSum(byte[] buf, int offset, int length) {
 		long sum = 0;
 
-		for (int i = 0; i < buf.length; ++i) {
+		for (int i = offset; i < offset + length; ++i) {
 			sum += 255 & buf[i];
 		}
 
@@ -182,7 +254,15 @@ public class Entry {
 	 * Writes the header to the byte buffer
 	 */
 	public void writeEntryHeader(byte[] outbuf) {
-		int offset = 0;
+		writeEntryHeader(outbuf, 0);
+	}
+
+	/**
+	 * Writes the 512-byte header into the buffer at the given offset without
+	 * allocating intermediate buffers
+	 */
+	public void writeEntryHeader(byte[] outbuf, int start) {
+		int offset = start;
 
 		offset = Header.getNameBytes(header.name, outbuf, offset, Header.NAMELEN);
 		offset = Octal.getOctalBytes(header.mode, outbuf, offset, Header.MODELEN);
@@ -191,8 +271,8 @@ public class Entry {
 
 		long size = header.size;
 
-		offset = Octal.getLongOctalBytes(size, outbuf, offset, Header.SIZELEN);
-		offset = Octal.getLongOctalBytes(header.modTime, outbuf, offset, Header.MODTIMELEN);
+		offset = Octal.getNumericBytes(size, outbuf, offset, Header.SIZELEN);
+		offset = Octal.getNumericBytes(header.modTime, outbuf, offset, Header.MODTIMELEN);
 
 		int csOffset = offset;
 		for (int c = 0; c < Header.CHKSUMLEN; ++c)
@@ -208,10 +288,10 @@ public class Entry {
 		offset = Octal.getOctalBytes(header.devMinor, outbuf, offset, Header.USTAR_DEVLEN);
 		offset = Header.getNameBytes(header.namePrefix, outbuf, offset, Header.USTAR_FILENAME_PREFIX);
 
-		for (; offset < outbuf.length;)
+		for (; offset < start + HeaderView.HEADER_BLOCK;)
 			outbuf[offset++] = 0;
 
-		long checkSum = this.computeCheckSum(outbuf);
+		long checkSum = computeCheckSum(outbuf, start, HeaderView.HEADER_BLOCK);
 
 		Octal.getCheckSumOctalBytes(checkSum, outbuf, csOffset, Header.CHKSUMLEN);
 	}
@@ -248,13 +328,13 @@ public class Entry {
 		header.linkName = Header.parseName(bh, offset, Header.NAMELEN);
 		offset += Header.NAMELEN;
 
-		header.magic = Header.parseName(bh, offset, Header.USTAR_MAGICLEN);
+		header.magic = Header.parseSharedName(bh, offset, Header.USTAR_MAGICLEN);
 		offset += Header.USTAR_MAGICLEN;
 
-		header.userName = Header.parseName(bh, offset, Header.USTAR_USER_NAMELEN);
+		header.userName = Header.parseSharedName(bh, offset, Header.USTAR_USER_NAMELEN);
 		offset += Header.USTAR_USER_NAMELEN;
 
-		header.groupName = Header.parseName(bh, offset, Header.USTAR_GROUP_NAMELEN);
+		header.groupName = Header.parseSharedName(bh, offset, Header.USTAR_GROUP_NAMELEN);
 		offset += Header.USTAR_GROUP_NAMELEN;
 
 		header.devMajor = (int) Octal.parseOctal(bh, offset, Header.USTAR_DEVLEN);
@@ -280,17 +360,18 @@ public class Entry {
 	private static final boolean isPosix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
 
 	private static int posixPermissions(File f) {
-		int number = 0;
 		try {
-			Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(f.toPath());
-			for (Map.Entry<PosixFilePermission, Integer> entry : posixPermissionToInteger.entrySet()) {
-				if (permissions.contains(entry.getKey())) {
-					number += entry.getValue();
-				}
-			}
+			return toMode(Files.getPosixFilePermissions(f.toPath()));
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+	}
+
+	private static int toMode(Set<PosixFilePermission> permissions) {
+		int number = 0;
+		for (PosixFilePermission permission : permissions) {
+			number += posixPermissionToInteger.get(permission);
+		}
 		return number;
 	}
 
@@ -0,0 +1,58 @@
+package ru.kasyan;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Element of an archive as a stream of items, as published by
+ * {@link TarPublisher} and consumed by {@link TarSubscriber}: the header of an
+ * entry followed by chunks of its body. The chunks of an entry must add up to
+ * the size of its header.
+ */
+public final class EntryPart {
+    private final Entry entry;
+    private final ByteBuffer data;
+
+    private EntryPart(Entry entry, ByteBuffer data) {
+        this.entry = entry;
+        this.data = data;
+    }
+
+    /**
+     * The header of an entry, which starts the entry
+     */
+    public static EntryPart of(Entry entry) {
+        return new EntryPart(Objects.requireNonNull(entry, "entry"), null);
+    }
+
+    /**
+     * The remaining bytes of the buffer as the next chunk of the current
+     * entry's body. The buffer is consumed when the chunk is written.
+     */
+    public static EntryPart of(ByteBuffer data) {
+        return new EntryPart(null, Objects.requireNonNull(data, "data"));
+    }
+
+    public boolean isHeader() {
+        return entry != null;
+    }
+
+    /**
+     * Returns the entry or null if this is a chunk of a body
+     */
+    public Entry getEntry() {
+        return entry;
+    }
+
+    /**
+     * Returns the chunk or null if this is a header
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return isHeader() ? "header " + entry.getName() : "data " + data.remaining();
+    }
+}
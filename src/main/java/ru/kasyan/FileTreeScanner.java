@@ -0,0 +1,168 @@
+package ru.kasyan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Walks the input paths and collects the files to archive together with
+ * their attributes.
+ *
+ * Directories are listed with a {@link DirectoryStream} and every entry is
+ * stat'ed exactly once, for its POSIX attributes where supported, so building
+ * the entry header needs no further stat calls. Only symbolic links take a
+ * second call, for the attributes of their target, since links are archived
+ * as what they point to. Names follow the same rules as before: a top-level
+ * file is stored under its own name, the contents of a top-level directory
+ * under the directory name, and directories appear as entries only when they
+ * are empty.
+ *
+ * With a parallelism above one the subdirectories of each top-level directory
+ * are walked concurrently and the results are concatenated in walk order.
+ */
+class FileTreeScanner {
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private final int parallelism;
+
+    FileTreeScanner(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    List<Archiver.Source> scan(List<String> paths) throws IOException {
+        ExecutorService pool = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        try {
+            List<Future<List<Archiver.Source>>> parts = new ArrayList<>();
+            for (String path : paths) {
+                scanRoot(Paths.get(path).toAbsolutePath(), parts, pool);
+            }
+
+            List<Archiver.Source> sources = new ArrayList<>();
+            for (Future<List<Archiver.Source>> part : parts) {
+                sources.addAll(await(part));
+            }
+            return sources;
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Adds the sources below the root in walk order, as subtrees still being
+     * walked by the pool or as lists that are already complete
+     */
+    private void scanRoot(Path root, List<Future<List<Archiver.Source>>> parts, ExecutorService pool)
+            throws IOException {
+        BasicFileAttributes attrs = readAttributes(root);
+        if (!attrs.isDirectory()) {
+            parts.add(done(new Archiver.Source(root.toFile(), root.getFileName().toString(), attrs)));
+            return;
+        }
+
+        String prefix = root.getFileName() + "/";
+        Deque<Object> ancestors = new ArrayDeque<>();
+        ancestors.push(key(root, attrs));
+        if (pool == null) {
+            List<Archiver.Source> sources = new ArrayList<>();
+            walk(root, prefix, sources, ancestors);
+            parts.add(CompletableFuture.completedFuture(sources));
+            return;
+        }
+
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(root)) {
+            for (Path child : children) {
+                BasicFileAttributes childAttrs = readAttributes(child);
+                String name = prefix + child.getFileName();
+                if (childAttrs.isDirectory()) {
+                    parts.add(pool.submit(() -> {
+                        List<Archiver.Source> sources = new ArrayList<>();
+                        visit(child, name, childAttrs, sources, new ArrayDeque<>(ancestors));
+                        return sources;
+                    }));
+                } else {
+                    parts.add(done(new Archiver.Source(child.toFile(), name, childAttrs)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds every file and every empty directory below the directory
+     *
+     * @return false if the directory has no entries
+     */
+    private static boolean walk(Path dir, String prefix, List<Archiver.Source> sources, Deque<Object> ancestors)
+            throws IOException {
+        boolean any = false;
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                any = true;
+                visit(child, prefix + child.getFileName(), readAttributes(child), sources, ancestors);
+            }
+        }
+        return any;
+    }
+
+    private static void visit(Path path, String name, BasicFileAttributes attrs, List<Archiver.Source> sources,
+                              Deque<Object> ancestors) throws IOException {
+        if (!attrs.isDirectory()) {
+            sources.add(new Archiver.Source(path.toFile(), name, attrs));
+            return;
+        }
+
+        Object key = key(path, attrs);
+        if (ancestors.contains(key)) {
+            throw new FileSystemLoopException(path.toString());
+        }
+        ancestors.push(key);
+        boolean any = walk(path, name + "/", sources, ancestors);
+        ancestors.pop();
+        if (!any) {
+            sources.add(new Archiver.Source(path.toFile(), name + "/", attrs));
+        }
+    }
+
+    /**
+     * Identifies a directory for finding link loops, by the file key where
+     * the file system has one
+     */
+    private static Object key(Path dir, BasicFileAttributes attrs) throws IOException {
+        Object key = attrs.fileKey();
+        return key != null ? key : dir.toRealPath();
+    }
+
+    private static Future<List<Archiver.Source>> done(Archiver.Source source) {
+        return CompletableFuture.completedFuture(Collections.singletonList(source));
+    }
+
+    /**
+     * One stat call for the path itself, and one more for the target if the
+     * path is a symbolic link
+     */
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        Class<? extends BasicFileAttributes> type = POSIX ? PosixFileAttributes.class : BasicFileAttributes.class;
+        BasicFileAttributes attrs = Files.readAttributes(path, type, LinkOption.NOFOLLOW_LINKS);
+        return attrs.isSymbolicLink() ? Files.readAttributes(path, type) : attrs;
+    }
+
+    private static List<Archiver.Source> await(Future<List<Archiver.Source>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning files");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.kasyan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Single-threaded gzip based on java.util.zip
+ */
+public class GzipCodec implements CompressionCodec {
+    static final int BUFFER = 64 * 1024;
+
+    @Override
+    public String getExtension() {
+        return ".gz";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER);
+    }
+
+    /**
+     * Reads plain gzip files as well as the concatenated members written by
+     * {@link ParallelGzipCodec}
+     */
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER);
+    }
+
+    /**
+     * Checks the two gzip magic bytes at the start of a stream
+     */
+    static boolean isGzip(byte[] magic) {
+        return magic.length >= 2 && (magic[0] & 0xFF) == 0x1f && (magic[1] & 0xFF) == 0x8b;
+    }
+}
@@ -1,6 +1,7 @@
 package ru.kasyan;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Created by Kasyanenko Konstantin
@@ -16,7 +17,12 @@ public class Header {
     static final int MODTIMELEN = 12;
     static final int CHKSUMLEN = 8;
 
+    static final byte LF_LINK = (byte) '1';
     static final byte LF_DIR = (byte) '5';
+    static final byte LF_PAX = (byte) 'x';
+    static final byte LF_PAX_GLOBAL = (byte) 'g';
+    static final byte LF_GNU_LONGNAME = (byte) 'L';
+    static final byte LF_GNU_LONGLINK = (byte) 'K';
     private static final byte LF_NORMAL = (byte) '0';
     private static final String USTAR_MAGIC = "ustar"; // POSIX
 
@@ -26,8 +32,10 @@ public class Header {
     static final int USTAR_DEVLEN = 8;
     static final int USTAR_FILENAME_PREFIX = 155;
 
+    private static final String DEFAULT_USER_NAME = defaultUserName();
+
     // Header values
-    StringBuffer name;
+    String name;
     int mode;
     int userId;
     int groupId;
@@ -35,30 +43,35 @@ public class Header {
     long modTime;
     int checkSum;
     byte linkFlag;
-    StringBuffer linkName;
-    StringBuffer magic; // ustar indicator and version
-    StringBuffer userName;
-    StringBuffer groupName;
+    String linkName;
+    String magic; // ustar indicator and version
+    String userName;
+    String groupName;
     int devMajor;
     int devMinor;
-    StringBuffer namePrefix;
+    String namePrefix;
+    long sparseSize = -1; // length of the file a sparse entry restores, -1 if not sparse
 
     Header() {
-        this.magic = new StringBuffer(Header.USTAR_MAGIC);
+        this.magic = Header.USTAR_MAGIC;
+
+        this.name = "";
+        this.linkName = "";
 
-        this.name = new StringBuffer();
-        this.linkName = new StringBuffer();
+        this.userId = 0;
+        this.groupId = 0;
+        this.userName = DEFAULT_USER_NAME;
+        this.groupName = "";
+        this.namePrefix = "";
+    }
 
+    private static String defaultUserName() {
         String user = System.getProperty("user.name", "");
 
         if (user.length() > 31)
             user = user.substring(0, 31);
 
-        this.userId = 0;
-        this.groupId = 0;
-        this.userName = new StringBuffer(user);
-        this.groupName = new StringBuffer("");
-        this.namePrefix = new StringBuffer();
+        return user;
     }
 
     /**
@@ -72,17 +85,21 @@ public class Header {
      *            The number of header bytes to parse.
      * @return The header's entry name.
      */
-    public static StringBuffer parseName(byte[] header, int offset, int length) {
-        StringBuffer result = new StringBuffer(length);
-
-        int end = offset + length;
-        for (int i = offset; i < end; ++i) {
-            if (header[i] == 0)
-                break;
-            result.append((char) header[i]);
+    public static String parseName(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            ++end;
         }
 
-        return result;
+        return end == offset ? "" : new String(header, offset, end - offset, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses a field that takes few distinct values across an archive, such
+     * as the magic or the owner names, sharing one instance per value
+     */
+    static String parseSharedName(byte[] header, int offset, int length) {
+        return parseName(header, offset, length).intern();
     }
 
     /**
@@ -96,7 +113,7 @@ public class Header {
      *            The number of header bytes to parse.
      * @return The number of bytes in a header's entry name.
      */
-    static int getNameBytes(StringBuffer name, byte[] buf, int offset, int length) {
+    static int getNameBytes(String name, byte[] buf, int offset, int length) {
         int i;
 
         for (i = 0; i < length && i < name.length(); ++i) {
@@ -128,20 +145,15 @@ public class Header {
         name = trim(name.replace(File.separatorChar, '/'), '/');
 
         Header header = new Header();
-        header.linkName = new StringBuffer("");
+        header.linkName = "";
         header.mode = permissions;
 
-        if (name.length() > 100) {
-            header.namePrefix = new StringBuffer(name.substring(0, name.lastIndexOf('/')));
-            header.name = new StringBuffer(name.substring(name.lastIndexOf('/') + 1));
-        } else {
-            header.name = new StringBuffer(name);
+        if (dir && !name.endsWith("/")) {
+            name = name + "/";
         }
+        setName(header, name);
         if (dir) {
             header.linkFlag = Header.LF_DIR;
-            if (header.name.charAt(header.name.length() - 1) != '/') {
-                header.name.append("/");
-            }
             header.size = 0;
         } else {
             header.linkFlag = Header.LF_NORMAL;
@@ -156,6 +168,29 @@ public class Header {
         return header;
     }
 
+    /**
+     * Stores the name in the header. Names longer than the name field are
+     * split at a '/' so that the part before it fits the prefix field and the
+     * part after it the name field. Names that cannot be split this way are
+     * kept whole and written with a PAX extended header.
+     */
+    static void setName(Header header, String name) {
+        header.namePrefix = "";
+        header.name = name;
+        if (name.length() <= NAMELEN) {
+            return;
+        }
+
+        int first = Math.max(1, name.length() - NAMELEN - 1);
+        for (int i = Math.min(USTAR_FILENAME_PREFIX, name.length() - 2); i >= first; i--) {
+            if (name.charAt(i) == '/') {
+                header.namePrefix = name.substring(0, i);
+                header.name = name.substring(i + 1);
+                return;
+            }
+        }
+    }
+
     private static String trim(String s, char c) {
         StringBuffer tmp = new StringBuffer(s);
         for (int i = 0; i < tmp.length(); i++) {
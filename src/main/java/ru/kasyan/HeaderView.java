@@ -0,0 +1,117 @@
+package ru.kasyan;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable read-only view of a 512-byte tar header.
+ *
+ * The view decodes fields straight from the underlying array at the given
+ * offset and allocates nothing except the entry name, which is only built
+ * when {@link #getName()} is called. One instance can be reset to walk over
+ * any number of headers.
+ */
+public final class HeaderView {
+    static final int HEADER_BLOCK = 512;
+
+    static final int NAME_OFFSET = 0;
+    static final int MODE_OFFSET = NAME_OFFSET + Header.NAMELEN;
+    static final int UID_OFFSET = MODE_OFFSET + Header.MODELEN;
+    static final int GID_OFFSET = UID_OFFSET + Header.UIDLEN;
+    static final int SIZE_OFFSET = GID_OFFSET + Header.GIDLEN;
+    static final int MODTIME_OFFSET = SIZE_OFFSET + Header.SIZELEN;
+    static final int CHKSUM_OFFSET = MODTIME_OFFSET + Header.MODTIMELEN;
+    static final int LINKFLAG_OFFSET = CHKSUM_OFFSET + Header.CHKSUMLEN;
+    static final int LINKNAME_OFFSET = LINKFLAG_OFFSET + 1;
+    static final int MAGIC_OFFSET = LINKNAME_OFFSET + Header.NAMELEN;
+    static final int PREFIX_OFFSET = MAGIC_OFFSET + Header.USTAR_MAGICLEN + Header.USTAR_USER_NAMELEN
+            + Header.USTAR_GROUP_NAMELEN + 2 * Header.USTAR_DEVLEN;
+
+    private final byte[] scratch = new byte[HEADER_BLOCK];
+    private byte[] buf;
+    private int offset;
+
+    /**
+     * Points the view at the header starting at {@code offset} in the array
+     */
+    public HeaderView reset(byte[] buf, int offset) {
+        this.buf = buf;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Points the view at the header starting at the buffer position. Heap
+     * buffers are read in place, direct buffers are copied into an internal
+     * array that is reused between calls. The buffer position is not changed.
+     */
+    public HeaderView reset(ByteBuffer header) {
+        if (header.hasArray()) {
+            return reset(header.array(), header.arrayOffset() + header.position());
+        }
+        header.duplicate().get(scratch);
+        return reset(scratch, 0);
+    }
+
+    /**
+     * Checks if the header is an all-zero end-of-archive block
+     */
+    public boolean isZeroBlock() {
+        for (int i = offset; i < offset + HEADER_BLOCK; i++) {
+            if (buf[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getSize() {
+        return Octal.parseOctal(buf, offset + SIZE_OFFSET, Header.SIZELEN);
+    }
+
+    public long getModTime() {
+        return Octal.parseOctal(buf, offset + MODTIME_OFFSET, Header.MODTIMELEN);
+    }
+
+    public int getMode() {
+        return (int) Octal.parseOctal(buf, offset + MODE_OFFSET, Header.MODELEN);
+    }
+
+    public byte getLinkFlag() {
+        return buf[offset + LINKFLAG_OFFSET];
+    }
+
+    /**
+     * Checks if the stored checksum matches the header contents
+     */
+    public boolean isChecksumValid() {
+        long stored = Octal.parseOctal(buf, offset + CHKSUM_OFFSET, Header.CHKSUMLEN);
+        long sum = Entry.computeCheckSum(buf, offset, CHKSUM_OFFSET)
+                + ' ' * Header.CHKSUMLEN
+                + Entry.computeCheckSum(buf, offset + LINKFLAG_OFFSET, HEADER_BLOCK - LINKFLAG_OFFSET);
+        return stored == sum;
+    }
+
+    /**
+     * Decodes the full entry name, joining the ustar prefix and name fields
+     * the same way as {@link Entry#getName()}
+     */
+    public String getName() {
+        int nameLength = fieldLength(NAME_OFFSET, Header.NAMELEN);
+        int prefixLength = fieldLength(PREFIX_OFFSET, Header.USTAR_FILENAME_PREFIX);
+        String name = new String(buf, offset + NAME_OFFSET, nameLength, StandardCharsets.ISO_8859_1);
+        if (prefixLength == 0) {
+            return name;
+        }
+        return new String(buf, offset + PREFIX_OFFSET, prefixLength, StandardCharsets.ISO_8859_1) + "/" + name;
+    }
+
+    private int fieldLength(int field, int length) {
+        int start = offset + field;
+        int i = start;
+        while (i < start + length && buf[i] != 0) {
+            ++i;
+        }
+        return i - start;
+    }
+}
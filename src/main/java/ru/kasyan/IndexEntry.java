@@ -0,0 +1,127 @@
+package ru.kasyan;
+
+/**
+ * Position of a single entry inside a tar archive.
+ *
+ * Offsets are absolute byte positions from the beginning of the archive:
+ * {@code headerOffset} points at the 512-byte header block and
+ * {@code dataOffset} at the first byte of the entry content.
+ *
+ * Entries indexed by a {@link TarReader} refer to the node of their name in
+ * its {@link PathTrie} instead of holding the whole name, which is rebuilt
+ * when asked for.
+ */
+public class IndexEntry {
+    private final String name;
+    private final PathTrie.Node<IndexEntry> node;
+    private final long headerOffset;
+    private final long dataOffset;
+    private final long size;
+    private final long modTime;
+    private final int mode;
+    private final byte linkFlag;
+    private final long realSize;
+
+    public IndexEntry(String name, long headerOffset, long dataOffset, long size, long modTime, int mode, byte linkFlag) {
+        this(name, headerOffset, dataOffset, size, modTime, mode, linkFlag, -1);
+    }
+
+    /**
+     * @param realSize length of the file restored from a sparse entry, or -1
+     *                 if the entry is not sparse
+     */
+    public IndexEntry(String name, long headerOffset, long dataOffset, long size, long modTime, int mode, byte linkFlag,
+                      long realSize) {
+        this(name, null, headerOffset, dataOffset, size, modTime, mode, linkFlag, realSize);
+    }
+
+    /**
+     * Creates an entry named by its node in a trie, without a copy of the name
+     */
+    IndexEntry(PathTrie.Node<IndexEntry> node, long headerOffset, long dataOffset, long size, long modTime, int mode,
+               byte linkFlag, long realSize) {
+        this(null, node, headerOffset, dataOffset, size, modTime, mode, linkFlag, realSize);
+    }
+
+    private IndexEntry(String name, PathTrie.Node<IndexEntry> node, long headerOffset, long dataOffset, long size,
+                       long modTime, int mode, byte linkFlag, long realSize) {
+        this.name = name;
+        this.node = node;
+        this.headerOffset = headerOffset;
+        this.dataOffset = dataOffset;
+        this.size = size;
+        this.modTime = modTime;
+        this.mode = mode;
+        this.linkFlag = linkFlag;
+        this.realSize = realSize;
+    }
+
+    IndexEntry(Entry entry, long headerOffset, long dataOffset) {
+        this(entry.getName(), headerOffset, dataOffset, entry.getSize(),
+                entry.getHeader().modTime, entry.getHeader().mode, entry.getHeader().linkFlag,
+                entry.getHeader().sparseSize);
+    }
+
+    public String getName() {
+        return node != null ? node.getPath() : name;
+    }
+
+    /**
+     * Returns the trie node naming the entry, or null if the entry holds its
+     * name itself
+     */
+    PathTrie.Node<IndexEntry> getNode() {
+        return node;
+    }
+
+    public long getHeaderOffset() {
+        return headerOffset;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Size of the entry body in the archive, which for a sparse entry is the
+     * sparse map and the data segments
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Length of the extracted file
+     */
+    public long getRealSize() {
+        return realSize < 0 ? size : realSize;
+    }
+
+    public boolean isSparse() {
+        return realSize >= 0;
+    }
+
+    /**
+     * Last modification time in numeric Unix time format
+     */
+    public long getModTime() {
+        return modTime;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public byte getLinkFlag() {
+        return linkFlag;
+    }
+
+    public boolean isDirectory() {
+        return linkFlag == Header.LF_DIR || (node != null ? node.isDirectory() : name.endsWith("/"));
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " [header=" + headerOffset + ", data=" + dataOffset + ", size=" + size + "]";
+    }
+}
@@ -0,0 +1,73 @@
+package ru.kasyan;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * State of an archived tree used by incremental archiving: name, size,
+ * modification time, mode and type of every entry.
+ *
+ * A manifest is stored in the {@link TarIndex} format and can also be built
+ * from an existing archive.
+ */
+public class Manifest {
+    private final Map<String, IndexEntry> records = new LinkedHashMap<>();
+
+    /**
+     * Loads a manifest saved by {@link #save(File)}
+     */
+    public static Manifest load(File file) throws IOException {
+        Manifest manifest = new Manifest();
+        for (IndexEntry entry : TarIndex.read(file).getEntries()) {
+            manifest.records.put(entry.getName(), entry);
+        }
+        return manifest;
+    }
+
+    /**
+     * Builds the manifest of a plain tar archive from its headers
+     */
+    public static Manifest fromArchive(File archive) throws IOException {
+        Manifest manifest = new Manifest();
+        try (TarReader reader = new TarReader(archive)) {
+            for (IndexEntry entry : reader.getEntries()) {
+                manifest.records.put(entry.getName(), entry);
+            }
+        }
+        return manifest;
+    }
+
+    public void save(File file) throws IOException {
+        TarIndex index = new TarIndex();
+        for (IndexEntry entry : records.values()) {
+            index.add(entry);
+        }
+        index.write(file);
+    }
+
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(records.keySet());
+    }
+
+    public IndexEntry get(String name) {
+        return records.get(name);
+    }
+
+    void put(IndexEntry entry) {
+        records.put(entry.getName(), entry);
+    }
+
+    /**
+     * Checks if the entry has the same size, modification time, mode and type as recorded
+     */
+    boolean isUnchanged(Entry entry) {
+        IndexEntry previous = records.get(entry.getName());
+        Header header = entry.getHeader();
+        return previous != null
+                && previous.getRealSize() == header.size
+                && previous.getModTime() == header.modTime
+                && previous.getMode() == header.mode
+                && previous.getLinkFlag() == header.linkFlag;
+    }
+}
@@ -10,6 +10,10 @@ class Octal {
      * Разбор восьмеричной строки из буфера заголовка
      */
     static long parseOctal(byte[] header, int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            return parseBinary(header, offset, length);
+        }
+
         long result = 0;
         boolean stillPadding = true;
 
@@ -34,6 +38,46 @@ class Octal {
         return result;
     }
 
+    /**
+     * Parses a GNU base-256 number: the high bit of the first byte is set and
+     * the value follows in big-endian order
+     */
+    private static long parseBinary(byte[] header, int offset, int length) {
+        long result = header[offset] & 0x7F;
+        for (int i = offset + 1; i < offset + length; ++i) {
+            result = ( result << 8 ) | ( header[i] & 0xFF );
+        }
+        return result;
+    }
+
+    /**
+     * Writes a number as octal if it fits into the field and in GNU base-256
+     * encoding otherwise, e.g. sizes of 8 GB and more
+     *
+     * @return offset past the field
+     */
+    static int getNumericBytes(long value, byte[] buf, int offset, int length) {
+        if (value <= maxOctal(length)) {
+            return getLongOctalBytes( value, buf, offset, length );
+        }
+
+        long val = value;
+        for (int i = offset + length - 1; i > offset; --i) {
+            buf[i] = (byte) val;
+            val >>>= 8;
+        }
+        buf[offset] = (byte) 0x80;
+        return offset + length;
+    }
+
+    /**
+     * Largest value {@link #getLongOctalBytes} can store in a field, which
+     * keeps one byte for the terminating space
+     */
+    static long maxOctal(int length) {
+        return ( 1L << ( 3 * ( length - 1 ) ) ) - 1;
+    }
+
     /**
      * Write an octal integer to a header buffer.
      * 
@@ -107,9 +151,25 @@ class Octal {
      * @return The long value of the octal bytes.
      */
     public static int getLongOctalBytes(long value, byte[] buf, int offset, int length) {
-        byte[] temp = new byte[length + 1];
-        getOctalBytes( value, temp, 0, length + 1 );
-        System.arraycopy( temp, 0, buf, offset, length );
+        int idx = length - 1;
+
+        buf[offset + idx] = (byte) ' ';
+        --idx;
+
+        if (value == 0) {
+            buf[offset + idx] = (byte) '0';
+            --idx;
+        } else {
+            for (long val = value; idx >= 0 && val > 0; --idx) {
+                buf[offset + idx] = (byte) ( (byte) '0' + (byte) ( val & 7 ) );
+                val = val >> 3;
+            }
+        }
+
+        for (; idx >= 0; --idx) {
+            buf[offset + idx] = (byte) ' ';
+        }
+
         return offset + length;
     }
 
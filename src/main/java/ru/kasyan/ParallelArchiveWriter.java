@@ -0,0 +1,134 @@
+package ru.kasyan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Writes archive entries in order while a pool of workers stats and reads the
+ * files ahead of the writer.
+ *
+ * At most {@code 2 * threads} entries are in flight and each worker keeps at
+ * most {@code bufferBudget / (2 * threads)} bytes of a file in memory, and no
+ * more than fits in an array; larger files are streamed by the writer itself
+ * when their turn comes. Headers are
+ * built from the same {@link Entry} constructor as in serial mode, so the
+ * resulting archive is byte-identical.
+ */
+class ParallelArchiveWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelArchiveWriter.class);
+    /**
+     * Largest array the JVM reliably allocates
+     */
+    static final int MAX_PRE_READ = Integer.MAX_VALUE - 8;
+
+    private final int threads;
+    private final int window;
+    private final long maxPreRead;
+    private final ArchiveListener listener;
+
+    ParallelArchiveWriter(int threads, long bufferBudget, ArchiveListener listener) {
+        this.threads = threads;
+        this.listener = listener;
+        this.window = threads * 2;
+        this.maxPreRead = preReadLimit(bufferBudget, threads);
+    }
+
+    /**
+     * Largest file a worker reads into memory: its share of the budget, but
+     * never more than fits in one array
+     */
+    static long preReadLimit(long bufferBudget, int threads) {
+        return Math.min(MAX_PRE_READ, bufferBudget / (threads * 2));
+    }
+
+    void write(List<Archiver.Source> sources, TarOutputStream out) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<Prepared>> pending = new ArrayDeque<>();
+        try {
+            for (Archiver.Source source : sources) {
+                if (pending.size() == window) {
+                    Future<Prepared> next = pending.poll();
+                    listener.queueDepth(pending.size());
+                    writePrepared(await(next), out);
+                }
+                pending.add(pool.submit(() -> prepare(source)));
+                listener.queueDepth(pending.size());
+            }
+            while (!pending.isEmpty()) {
+                Future<Prepared> next = pending.poll();
+                listener.queueDepth(pending.size());
+                writePrepared(await(next), out);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Prepared prepare(Archiver.Source source) throws IOException {
+        Entry entry = source.toEntry();
+        if (entry.isDirectory() || entry.getSize() > maxPreRead) {
+            return new Prepared(source, entry, null);
+        }
+
+        byte[] body = new byte[(int) entry.getSize()];
+        try (FileInputStream in = new FileInputStream(source.file)) {
+            int off = 0;
+            while (off < body.length) {
+                int res = in.read(body, off, body.length - off);
+                if (res < 0) {
+                    throw new IOException("File " + source.file + " is shorter than " + body.length + " bytes");
+                }
+                off += res;
+            }
+        }
+        return new Prepared(source, entry, body);
+    }
+
+    private void writePrepared(Prepared prepared, TarOutputStream out) throws IOException {
+        LOG.info("Adding: {}", prepared.source.name);
+        out.putNextEntry(prepared.entry);
+
+        if (prepared.body != null) {
+            out.write(prepared.body, 0, prepared.body.length);
+        } else if (!prepared.entry.isDirectory()) {
+            try (FileInputStream in = new FileInputStream(prepared.source.file)) {
+                out.write(in.getChannel(), 0, prepared.entry.getSize());
+            }
+        }
+    }
+
+    private static Prepared await(Future<Prepared> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading files");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static final class Prepared {
+        final Archiver.Source source;
+        final Entry entry;
+        final byte[] body;
+
+        Prepared(Archiver.Source source, Entry entry, byte[] body) {
+            this.source = source;
+            this.entry = entry;
+            this.body = body;
+        }
+    }
+}
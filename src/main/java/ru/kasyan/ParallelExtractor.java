@@ -0,0 +1,152 @@
+package ru.kasyan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Extracts an uncompressed archive with a pool of workers.
+ *
+ * The headers are scanned once by {@link TarReader}; every entry is then
+ * written by a worker with positional transfers from the shared archive
+ * channel, so workers never contend for a stream position. Parent directories
+ * are created once and remembered in a concurrent set. Hard links are
+ * created after all regular files, and deletion lists are applied last.
+ */
+class ParallelExtractor {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelExtractor.class);
+
+    private final int threads;
+    private final Set<String> createdDirs = ConcurrentHashMap.newKeySet();
+
+    ParallelExtractor(int threads) {
+        this.threads = threads;
+    }
+
+    void extract(File archive, File destFolder) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (TarReader reader = new TarReader(archive)) {
+            List<Future<?>> tasks = new ArrayList<>();
+            List<IndexEntry> links = new ArrayList<>();
+            for (IndexEntry entry : reader.getEntries()) {
+                if (Archiver.DELETED_ENTRY.equals(entry.getName())) {
+                    continue;
+                }
+                if (entry.getLinkFlag() == Header.LF_LINK) {
+                    links.add(entry);
+                    continue;
+                }
+                tasks.add(pool.submit(() -> {
+                    extractEntry(reader.getChannel(), entry, destFolder);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                await(task);
+            }
+
+            // link targets exist only once all regular files are written
+            for (IndexEntry entry : links) {
+                LOG.info("Extracting: {}", entry.getName());
+                File target = new File(destFolder, entry.getName());
+                ensureDir(target.getParentFile());
+                Archiver.link(target, new File(destFolder, reader.readEntry(entry).getLinkName()));
+            }
+
+            applyDeletions(reader, destFolder);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Applies every deletion list in archive order. A list takes effect only
+     * on names whose last entry comes before it, which is what sequential
+     * extraction leaves behind when e.g. merged incremental archives delete
+     * a file and later add it again.
+     */
+    private static void applyDeletions(TarReader reader, File destFolder) throws IOException {
+        List<IndexEntry> lists = new ArrayList<>();
+        for (IndexEntry entry : reader.getShadowedEntries()) {
+            if (Archiver.DELETED_ENTRY.equals(entry.getName())) {
+                lists.add(entry);
+            }
+        }
+        IndexEntry last = reader.getEntry(Archiver.DELETED_ENTRY);
+        if (last != null) {
+            lists.add(last);
+        }
+
+        for (IndexEntry deleted : lists) {
+            ByteBuffer list = reader.open(deleted);
+            byte[] names = new byte[list.remaining()];
+            list.get(names);
+            Archiver.applyDeletions(new ByteArrayInputStream(names), destFolder, name -> {
+                IndexEntry entry = reader.getEntry(name);
+                return entry == null || entry.getHeaderOffset() < deleted.getHeaderOffset();
+            });
+        }
+    }
+
+    private void extractEntry(FileChannel src, IndexEntry entry, File destFolder) throws IOException {
+        LOG.info("Extracting: {}", entry.getName());
+        File target = new File(destFolder, entry.getName());
+
+        if (entry.isDirectory()) {
+            ensureDir(target);
+            return;
+        }
+        ensureDir(target.getParentFile());
+        if (entry.isSparse()) {
+            SparseFiles.extract(src, entry, target);
+            return;
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            FileChannel dest = fos.getChannel();
+            long done = 0;
+            while (done < entry.getSize()) {
+                long res = src.transferTo(entry.getDataOffset() + done, entry.getSize() - done, dest);
+                if (res <= 0) {
+                    throw new IOException("Unexpected end of archive in entry " + entry.getName());
+                }
+                done += res;
+            }
+        }
+    }
+
+    private void ensureDir(File dir) {
+        String path = dir.getPath();
+        if (createdDirs.contains(path)) {
+            return;
+        }
+        dir.mkdirs();
+        createdDirs.add(path);
+    }
+
+    private static void await(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
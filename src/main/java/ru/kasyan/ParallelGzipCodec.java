@@ -0,0 +1,32 @@
+package ru.kasyan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Gzip compressed on several cores the way pigz does it: the stream is cut
+ * into blocks, each block is compressed into an independent gzip member and
+ * the members are concatenated in order. The result is a valid gzip file that
+ * any gzip reader, including {@link GzipCodec}, decompresses.
+ */
+public class ParallelGzipCodec extends GzipCodec {
+    private final int threads;
+    private final int blockSize;
+
+    public ParallelGzipCodec(int threads, int blockSize) {
+        if (threads < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("threads and blockSize must be positive");
+        }
+        this.threads = threads;
+        this.blockSize = blockSize;
+    }
+
+    public ParallelGzipCodec(int threads) {
+        this(threads, 1024 * 1024);
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new ParallelGzipOutputStream(out, threads, blockSize);
+    }
+}
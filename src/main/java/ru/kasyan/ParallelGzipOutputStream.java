@@ -0,0 +1,113 @@
+package ru.kasyan;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream that compresses fixed-size blocks into separate gzip members
+ * on a thread pool and writes the members in order.
+ *
+ * At most {@code 2 * threads} blocks are compressed or waiting at a time.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final int blockSize;
+    private final int window;
+    private final ExecutorService pool;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block;
+    private int count;
+    private boolean closed;
+
+    ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.window = threads * 2;
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+        if (count == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.poll()));
+            }
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (pending.size() == window) {
+            out.write(await(pending.poll()));
+        }
+
+        final byte[] data = block;
+        final int length = count;
+        pending.add(pool.submit(() -> compress(data, length)));
+
+        block = new byte[blockSize];
+        count = 0;
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, GzipCodec.BUFFER)) {
+            gzip.write(data, 0, length);
+        }
+        return member.toByteArray();
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package ru.kasyan;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Map from entry names to values that stores the names as a tree of their
+ * '/'-separated segments.
+ *
+ * Every directory level is stored once however many entries lie below it, and
+ * equal segments in different directories share one string, so an index of
+ * millions of entries with deep common prefixes keeps a fraction of the
+ * characters of the full names. Lookups take one step per segment, and all
+ * entries below a directory are found without looking at the others.
+ *
+ * A trailing '/' marks the name of a directory entry and is part of the key,
+ * but "a/b" and "a/b/" share one node and thus one value. Values are returned
+ * in the order their names were first added, like a {@code LinkedHashMap}.
+ * Not thread-safe.
+ */
+public class PathTrie<V> {
+    /**
+     * Children are searched linearly up to this many, through a hash table
+     * beyond
+     */
+    private static final int LINEAR_CHILDREN = 8;
+
+    private final Node<V> root = new Node<>(null, "");
+    private final List<Node<V>> order = new ArrayList<>();
+    private String[] segments = new String[64];
+    private int segmentCount;
+
+    /**
+     * Associates the value with the name
+     *
+     * @return the previous value of the name, or null
+     */
+    public V put(String name, V value) {
+        Node<V> node = node(name);
+        V previous = node.value;
+        node.value = value;
+        return previous;
+    }
+
+    public V get(String name) {
+        Node<V> node = find(name);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the values of the name and of all names below it, in the order
+     * the names were added. The prefix is matched by whole segments, so "a/b"
+     * takes in "a/b/", "a/b/c" and "a/b/c/d" but not "a/bc"; an empty prefix
+     * takes in everything.
+     */
+    public List<V> getSubtree(String prefix) {
+        String key = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        Node<V> top = key.isEmpty() ? root : find(key, false);
+        if (top == null) {
+            return Collections.emptyList();
+        }
+
+        List<Node<V>> nodes = new ArrayList<>();
+        collect(top, nodes);
+        nodes.sort(Comparator.comparingInt(node -> node.order));
+        List<V> values = new ArrayList<>(nodes.size());
+        for (Node<V> node : nodes) {
+            values.add(node.value);
+        }
+        return values;
+    }
+
+    /**
+     * Returns a read-only view of the values in the order their names were
+     * first added
+     */
+    public List<V> values() {
+        return new AbstractList<V>() {
+            @Override
+            public V get(int index) {
+                return order.get(index).value;
+            }
+
+            @Override
+            public int size() {
+                return order.size();
+            }
+        };
+    }
+
+    /**
+     * Number of names with a value
+     */
+    public int size() {
+        return order.size();
+    }
+
+    /**
+     * Checks if the name is the prefix or lies below it, by whole segments as
+     * in {@link #getSubtree(String)}
+     */
+    public static boolean isUnder(String name, String prefix) {
+        String key = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        if (key.isEmpty()) {
+            return true;
+        }
+        return name.startsWith(key) && (name.length() == key.length() || name.charAt(key.length()) == '/');
+    }
+
+    /**
+     * Returns the node of the name, creating it and the nodes above it if
+     * needed. The node is what an {@link IndexEntry} refers to instead of
+     * keeping its own copy of the name.
+     */
+    Node<V> node(String name) {
+        Node<V> node = root;
+        int end = trailingSlash(name) ? name.length() - 1 : name.length();
+        int start = 0;
+        while (true) {
+            int slash = name.indexOf('/', start);
+            int segmentEnd = slash < 0 || slash > end ? end : slash;
+            Node<V> child = node.child(name, start, segmentEnd);
+            if (child == null) {
+                child = new Node<>(node, intern(name.substring(start, segmentEnd)));
+                node.addChild(child);
+            }
+            node = child;
+            if (segmentEnd == end) {
+                break;
+            }
+            start = segmentEnd + 1;
+        }
+
+        if (node.order < 0) {
+            node.order = order.size();
+            order.add(node);
+        }
+        node.directory = trailingSlash(name);
+        return node;
+    }
+
+    /**
+     * Returns the node holding a value for exactly this name, or null
+     */
+    Node<V> find(String name) {
+        Node<V> node = find(trailingSlash(name) ? name.substring(0, name.length() - 1) : name, true);
+        return node != null && node.directory == trailingSlash(name) ? node : null;
+    }
+
+    private Node<V> find(String key, boolean withValue) {
+        Node<V> node = root;
+        int start = 0;
+        while (node != null) {
+            int slash = key.indexOf('/', start);
+            int segmentEnd = slash < 0 ? key.length() : slash;
+            node = node.child(key, start, segmentEnd);
+            if (segmentEnd == key.length()) {
+                break;
+            }
+            start = segmentEnd + 1;
+        }
+        return node == null || (withValue && node.order < 0) ? null : node;
+    }
+
+    private static boolean trailingSlash(String name) {
+        return name.length() > 1 && name.endsWith("/");
+    }
+
+    private void collect(Node<V> node, List<Node<V>> nodes) {
+        if (node.order >= 0) {
+            nodes.add(node);
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], nodes);
+        }
+    }
+
+    /**
+     * Returns the one instance of the segment kept by this trie, from an open
+     * addressing table that costs a single reference per distinct segment
+     */
+    private String intern(String segment) {
+        int mask = segments.length - 1;
+        int i = segment.hashCode() & mask;
+        String existing;
+        while ((existing = segments[i]) != null) {
+            if (existing.equals(segment)) {
+                return existing;
+            }
+            i = (i + 1) & mask;
+        }
+        segments[i] = segment;
+        if (++segmentCount * 2 > segments.length) {
+            String[] old = segments;
+            segments = new String[old.length * 2];
+            for (String s : old) {
+                if (s != null) {
+                    int j = s.hashCode() & (segments.length - 1);
+                    while (segments[j] != null) {
+                        j = (j + 1) & (segments.length - 1);
+                    }
+                    segments[j] = s;
+                }
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * One segment of a name. Children are kept in the order they were added;
+     * directories with many of them also get a hash table of child positions.
+     */
+    static final class Node<V> {
+        private final Node<V> parent;
+        private final String segment;
+        private Node<V>[] children;
+        private int childCount;
+        private int[] table; // child index + 1 by segment hash, 0 for a free slot
+        private int order = -1; // position among the named nodes, -1 if the node has no name of its own
+        private boolean directory;
+        private V value;
+
+        private Node(Node<V> parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        /**
+         * Rebuilds the full name from the segments up to the root
+         */
+        String getPath() {
+            int length = directory ? 1 : 0;
+            for (Node<V> node = this; node.parent != null; node = node.parent) {
+                length += node.segment.length() + (node.parent.parent != null ? 1 : 0);
+            }
+            char[] path = new char[length];
+            int end = length;
+            if (directory) {
+                path[--end] = '/';
+            }
+            for (Node<V> node = this; node.parent != null; node = node.parent) {
+                end -= node.segment.length();
+                node.segment.getChars(0, node.segment.length(), path, end);
+                if (node.parent.parent != null) {
+                    path[--end] = '/';
+                }
+            }
+            return new String(path);
+        }
+
+        V getValue() {
+            return value;
+        }
+
+        void setValue(V value) {
+            this.value = value;
+        }
+
+        /**
+         * Checks if the name of the node was last added with a trailing '/'
+         */
+        boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public String toString() {
+            return getPath();
+        }
+
+        private Node<V> child(String name, int start, int end) {
+            int length = end - start;
+            if (table == null) {
+                for (int i = 0; i < childCount; i++) {
+                    Node<V> child = children[i];
+                    if (child.segment.length() == length && name.regionMatches(start, child.segment, 0, length)) {
+                        return child;
+                    }
+                }
+                return null;
+            }
+
+            int mask = table.length - 1;
+            for (int i = hash(name, start, end) & mask; table[i] != 0; i = (i + 1) & mask) {
+                Node<V> child = children[table[i] - 1];
+                if (child.segment.length() == length && name.regionMatches(start, child.segment, 0, length)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        private void addChild(Node<V> child) {
+            if (children == null) {
+                children = newChildren(2);
+            } else if (childCount == children.length) {
+                Node<V>[] grown = newChildren(childCount * 2);
+                System.arraycopy(children, 0, grown, 0, childCount);
+                children = grown;
+            }
+            children[childCount++] = child;
+
+            if (table != null && childCount * 2 <= table.length) {
+                insert(childCount - 1);
+            } else if (childCount > LINEAR_CHILDREN) {
+                table = new int[Integer.highestOneBit(childCount) * 4];
+                for (int i = 0; i < childCount; i++) {
+                    insert(i);
+                }
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <V> Node<V>[] newChildren(int length) {
+            return new Node[length];
+        }
+
+        private void insert(int index) {
+            String s = children[index].segment;
+            int mask = table.length - 1;
+            int i = hash(s, 0, s.length()) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = index + 1;
+        }
+
+        /**
+         * Same value as {@link String#hashCode()} of the substring, without
+         * creating it
+         */
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package ru.kasyan;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * PAX extended headers (POSIX.1-2001, typeflag 'x') for values the ustar
+ * header cannot hold: names that do not fit the name and prefix fields or are
+ * not ASCII, long link names and sizes of 8 GB and more.
+ *
+ * On reading, the records of 'x' headers and the GNU long name ('L') and long
+ * link ('K') entries are collected into a map and applied to the header that
+ * follows them. Global 'g' headers are skipped.
+ *
+ * Sparse entries use the GNU sparse format 1.0: the records carry the real
+ * name and length of the file while the ustar name is a stand-in, so that
+ * readers without sparse support extract the map and the data segments to a
+ * separate file rather than a corrupt copy of the original.
+ */
+final class PaxHeaders {
+    static final String PATH = "path";
+    static final String LINKPATH = "linkpath";
+    static final String SIZE = "size";
+    static final String MTIME = "mtime";
+    static final String SPARSE_MAJOR = "GNU.sparse.major";
+    static final String SPARSE_MINOR = "GNU.sparse.minor";
+    static final String SPARSE_NAME = "GNU.sparse.name";
+    static final String SPARSE_REALSIZE = "GNU.sparse.realsize";
+
+    /**
+     * Upper bound for the body of an extended header, larger ones are taken
+     * for corruption rather than buffered
+     */
+    static final int MAX_EXTENSION = 1024 * 1024;
+
+    private static final String ENTRY_DIR = "PaxHeaders/";
+    private static final String SPARSE_DIR = "GNUSparseFile.0/";
+
+    private PaxHeaders() {
+    }
+
+    /**
+     * Checks if the entry with this type flag describes the next entry rather
+     * than being an entry of its own
+     */
+    static boolean isExtension(byte linkFlag) {
+        return linkFlag == Header.LF_PAX || linkFlag == Header.LF_PAX_GLOBAL
+                || linkFlag == Header.LF_GNU_LONGNAME || linkFlag == Header.LF_GNU_LONGLINK;
+    }
+
+    /**
+     * Returns the records for the values of the header that do not fit its
+     * ustar fields and the sparse records of a sparse entry, or null if none
+     * are needed. Nothing is allocated for headers that fit.
+     */
+    static byte[] encode(Header header) {
+        boolean sparse = header.sparseSize >= 0;
+        boolean path = header.name.length() > Header.NAMELEN
+                || header.namePrefix.length() > Header.USTAR_FILENAME_PREFIX
+                || !isAscii(header.name) || !isAscii(header.namePrefix);
+        boolean linkPath = header.linkName.length() > Header.NAMELEN || !isAscii(header.linkName);
+        boolean size = header.size > Octal.maxOctal(Header.SIZELEN);
+        if (!path && !linkPath && !size && !sparse) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String name = header.namePrefix.isEmpty() ? header.name
+                : header.namePrefix + "/" + header.name;
+        if (sparse) {
+            appendRecord(out, SPARSE_MAJOR, "1");
+            appendRecord(out, SPARSE_MINOR, "0");
+            appendRecord(out, SPARSE_NAME, name);
+            appendRecord(out, SPARSE_REALSIZE, Long.toString(header.sparseSize));
+        } else if (path) {
+            appendRecord(out, PATH, name);
+        }
+        if (linkPath) {
+            appendRecord(out, LINKPATH, header.linkName);
+        }
+        if (size) {
+            appendRecord(out, SIZE, Long.toString(header.size));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates the 'x' entry that carries the records of the entry
+     */
+    static Entry extensionEntry(Entry entry, int length) {
+        String name = entry.getName();
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        name = ENTRY_DIR + name.substring(name.lastIndexOf('/') + 1);
+        if (name.length() > Header.NAMELEN) {
+            name = name.substring(0, Header.NAMELEN);
+        }
+
+        Header header = Header.createHeader(name, length, entry.getHeader().modTime, false, 0644);
+        header.linkFlag = Header.LF_PAX;
+        return new Entry(header);
+    }
+
+    /**
+     * Creates the entry whose ustar header is written for a sparse entry: the
+     * same attributes under a stand-in name, the real name and size being in
+     * the records
+     */
+    static Entry sparseStandIn(Entry entry) {
+        String name = entry.getName();
+        name = SPARSE_DIR + name.substring(name.lastIndexOf('/') + 1);
+        if (name.length() > Header.NAMELEN) {
+            name = name.substring(0, Header.NAMELEN);
+        }
+
+        Header source = entry.getHeader();
+        Header header = Header.createHeader(name, source.size, source.modTime, false, source.mode);
+        header.userId = source.userId;
+        header.groupId = source.groupId;
+        header.userName = source.userName;
+        header.groupName = source.groupName;
+        return new Entry(header);
+    }
+
+    /**
+     * Returns the name given by the records, or the default if they have none
+     */
+    static String getName(Map<String, String> records, String defaultName) {
+        String name = isSparse(records) ? records.get(SPARSE_NAME) : null;
+        return name != null ? name : records.getOrDefault(PATH, defaultName);
+    }
+
+    /**
+     * Returns the real size of a sparse entry, or -1 if the records do not
+     * describe one
+     */
+    static long getRealSize(Map<String, String> records) throws IOException {
+        return isSparse(records) ? getLong(records, SPARSE_REALSIZE, -1) : -1;
+    }
+
+    /**
+     * Adds the values carried by the body of an extension entry to the map.
+     * Later records override earlier ones.
+     */
+    static void collect(byte linkFlag, byte[] body, Map<String, String> records) throws IOException {
+        if (linkFlag == Header.LF_PAX) {
+            parse(body, records);
+        } else if (linkFlag == Header.LF_GNU_LONGNAME) {
+            records.put(PATH, cString(body));
+        } else if (linkFlag == Header.LF_GNU_LONGLINK) {
+            records.put(LINKPATH, cString(body));
+        }
+    }
+
+    /**
+     * Overrides the ustar values of the header with the collected records
+     */
+    static void apply(Map<String, String> records, Header header) throws IOException {
+        String path = getName(records, null);
+        if (path != null) {
+            Header.setName(header, path);
+        }
+        String linkPath = records.get(LINKPATH);
+        if (linkPath != null) {
+            header.linkName = linkPath;
+        }
+        header.size = getLong(records, SIZE, header.size);
+        header.modTime = getLong(records, MTIME, header.modTime);
+        header.sparseSize = getRealSize(records);
+    }
+
+    /**
+     * Returns the whole seconds of a numeric record, or the default if there is none
+     */
+    static long getLong(Map<String, String> records, String key, long defaultValue) throws IOException {
+        String value = records.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        int dot = value.indexOf('.');
+        try {
+            return Long.parseLong(dot < 0 ? value : value.substring(0, dot));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + key + " in extended header: " + value);
+        }
+    }
+
+    /**
+     * Parses records of the form {@code "<length> <key>=<value>\n"}, where the
+     * length counts the whole record in bytes
+     */
+    static void parse(byte[] body, Map<String, String> records) throws IOException {
+        int pos = 0;
+        while (pos < body.length && body[pos] != 0) {
+            int length = 0;
+            int i = pos;
+            while (i < body.length && body[i] >= '0' && body[i] <= '9') {
+                length = length * 10 + (body[i++] - '0');
+            }
+            if (i >= body.length || body[i] != ' ' || length <= i - pos || pos + length > body.length) {
+                throw new IOException("Invalid extended header record at " + pos);
+            }
+
+            int end = pos + length - 1; // trailing '\n'
+            int eq = ++i;
+            while (eq < end && body[eq] != '=') {
+                eq++;
+            }
+            if (eq == end) {
+                throw new IOException("Invalid extended header record at " + pos);
+            }
+            String key = new String(body, i, eq - i, StandardCharsets.UTF_8);
+            records.put(key, new String(body, eq + 1, end - eq - 1, StandardCharsets.UTF_8));
+            pos += length;
+        }
+    }
+
+    private static void appendRecord(ByteArrayOutputStream out, String key, String value) {
+        byte[] record = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+        int length = record.length + Integer.toString(record.length).length();
+        if (Integer.toString(length).length() > Integer.toString(record.length).length()) {
+            length++;
+        }
+        byte[] prefix = Integer.toString(length).getBytes(StandardCharsets.US_ASCII);
+        out.write(prefix, 0, prefix.length);
+        out.write(record, 0, record.length);
+    }
+
+    /**
+     * Only the format 1.0 keeps its map in the body, the 0.x formats are read
+     * as plain entries
+     */
+    private static boolean isSparse(Map<String, String> records) {
+        return "1".equals(records.get(SPARSE_MAJOR)) && records.containsKey(SPARSE_REALSIZE);
+    }
+
+    private static String cString(byte[] body) {
+        int end = 0;
+        while (end < body.length && body[end] != 0) {
+            end++;
+        }
+        return new String(body, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isAscii(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
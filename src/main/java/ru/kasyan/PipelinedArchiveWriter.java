@@ -0,0 +1,165 @@
+package ru.kasyan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Writes archive entries on the calling thread while a reader thread reads the
+ * files ahead of it, so reading the sources and writing the archive overlap.
+ *
+ * The reader fills direct buffers from a {@link BufferPool} and hands them to
+ * the writer through a bounded queue; the writer returns every buffer to the
+ * pool once it is written. The pool is the only place file data is held, so
+ * memory use stays within the buffer budget however large the files are.
+ * Entries are written in source order with the same headers as in serial mode.
+ */
+class PipelinedArchiveWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelinedArchiveWriter.class);
+
+    static final int MAX_BUFFER = 1024 * 1024;
+    private static final int MIN_BUFFER = 8192;
+    private static final int QUEUE_SLACK = 64;
+    private static final Message END = new Message(null, null, null, null);
+
+    private final BufferPool pool;
+    private final BlockingQueue<Message> queue;
+    private final ArchiveListener listener;
+
+    PipelinedArchiveWriter(long bufferBudget, ArchiveListener listener) {
+        this(new BufferPool(bufferBudget, bufferSizeFor(bufferBudget)), listener);
+    }
+
+    PipelinedArchiveWriter(BufferPool pool, ArchiveListener listener) {
+        this.pool = pool;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(pool.getCapacity() + QUEUE_SLACK);
+    }
+
+    /**
+     * Keeps at least four buffers in flight unless the budget is tiny
+     */
+    static int bufferSizeFor(long bufferBudget) {
+        return (int) Math.min(MAX_BUFFER, Math.max(MIN_BUFFER, bufferBudget / 4));
+    }
+
+    void write(List<Archiver.Source> sources, TarOutputStream out) throws IOException {
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            reader.submit(() -> read(sources));
+
+            Message message;
+            while ((message = take()) != END) {
+                if (listener != ArchiveListener.NONE) {
+                    listener.queueDepth(queue.size());
+                }
+                if (message.error != null) {
+                    Throwable cause = message.error;
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+                if (message.entry != null) {
+                    LOG.info("Adding: {}", message.source.name);
+                    out.putNextEntry(message.entry);
+                } else {
+                    try {
+                        out.write(message.data);
+                    } finally {
+                        pool.release(message.data);
+                    }
+                }
+            }
+        } finally {
+            reader.shutdownNow();
+        }
+    }
+
+    private void read(List<Archiver.Source> sources) {
+        try {
+            for (Archiver.Source source : sources) {
+                Entry entry = source.toEntry();
+                put(new Message(source, entry, null, null));
+                if (!entry.isDirectory() && entry.getSize() > 0) {
+                    readBody(source, entry.getSize());
+                }
+            }
+            put(END);
+        } catch (Exception e) {
+            try {
+                put(new Message(null, null, null, e));
+            } catch (InterruptedIOException ignored) {
+                // the writer has given up already
+            }
+        }
+    }
+
+    private void readBody(Archiver.Source source, long size) throws IOException {
+        try (FileInputStream in = new FileInputStream(source.file)) {
+            FileChannel channel = in.getChannel();
+            long done = 0;
+            while (done < size) {
+                ByteBuffer buffer = pool.acquire();
+                try {
+                    if (size - done < buffer.capacity()) {
+                        buffer.limit((int) (size - done));
+                    }
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            throw new IOException("File " + source.file + " is shorter than " + size + " bytes");
+                        }
+                    }
+                    buffer.flip();
+                    done += buffer.remaining();
+                    put(new Message(source, null, buffer, null));
+                } catch (IOException e) {
+                    pool.release(buffer);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void put(Message message) throws InterruptedIOException {
+        try {
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing file data");
+        }
+    }
+
+    private Message take() throws InterruptedIOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file data");
+        }
+    }
+
+    /**
+     * Either the start of an entry, a chunk of its body, a reader failure or the end
+     */
+    private static final class Message {
+        final Archiver.Source source;
+        final Entry entry;
+        final ByteBuffer data;
+        final Exception error;
+
+        Message(Archiver.Source source, Entry entry, ByteBuffer data, Exception error) {
+            this.source = source;
+            this.entry = entry;
+            this.data = data;
+            this.error = error;
+        }
+    }
+}
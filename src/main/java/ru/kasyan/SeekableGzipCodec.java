@@ -0,0 +1,29 @@
+package ru.kasyan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Gzip written as a sequence of independent members aligned to entries, with
+ * a trailing chunk index for random access through {@link SeekableTarGzReader}.
+ * The archive remains readable by any gzip/tar tool.
+ */
+public class SeekableGzipCodec extends GzipCodec {
+    private final int blockSize;
+
+    public SeekableGzipCodec(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    public SeekableGzipCodec() {
+        this(4 * 1024 * 1024);
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new BlockGzipOutputStream(out, blockSize);
+    }
+}
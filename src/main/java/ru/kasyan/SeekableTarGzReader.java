@@ -0,0 +1,163 @@
+package ru.kasyan;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Random-access reader for archives written with {@link SeekableGzipCodec}.
+ *
+ * Only the chunk index at the end of the file is read on open. Opening an
+ * entry seeks to the member that contains the start of its data and
+ * decompresses from there, so the cost depends on the entry size and the
+ * block size, not on the position of the entry in the archive. Streams
+ * share the archive file, so only one of them may be read at a time.
+ */
+public class SeekableTarGzReader implements Closeable {
+    private final RandomAccessFile file;
+    private final long[] chunkCompressed;
+    private final long[] chunkUncompressed;
+    private final PathTrie<IndexEntry> index = new PathTrie<>();
+
+    public SeekableTarGzReader(File archive) throws IOException {
+        this.file = new RandomAccessFile(archive, "r");
+        try {
+            long indexOffset = readFooter(file);
+            if (indexOffset < 0) {
+                throw new IOException("Archive " + archive + " has no chunk index");
+            }
+            file.seek(indexOffset);
+            DataInputStream in = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(Channels.newInputStream(file.getChannel()))));
+            int count = in.readInt();
+            chunkCompressed = new long[count];
+            chunkUncompressed = new long[count];
+            for (int i = 0; i < count; i++) {
+                chunkCompressed[i] = in.readLong();
+                chunkUncompressed[i] = in.readLong();
+            }
+            TarIndex.read(in, index);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if the file ends with the chunk index footer
+     */
+    public static boolean isSeekable(File archive) {
+        try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+            return readFooter(raf) >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long readFooter(RandomAccessFile raf) throws IOException {
+        if (raf.length() < BlockGzipOutputStream.FOOTER_LENGTH) {
+            return -1;
+        }
+        byte[] footer = new byte[BlockGzipOutputStream.FOOTER_LENGTH];
+        raf.seek(raf.length() - footer.length);
+        raf.readFully(footer);
+        return BlockGzipOutputStream.parseFooter(footer);
+    }
+
+    public Collection<IndexEntry> getEntries() {
+        return Collections.unmodifiableCollection(index.values());
+    }
+
+    /**
+     * Returns the entry of the path and the entries below it
+     *
+     * @see TarReader#getEntries(String)
+     */
+    public List<IndexEntry> getEntries(String path) {
+        return Collections.unmodifiableList(index.getSubtree(path));
+    }
+
+    public IndexEntry getEntry(String name) {
+        return index.get(name);
+    }
+
+    /**
+     * Opens the content of the entry, decompressing only the members it spans
+     */
+    public InputStream open(IndexEntry entry) throws IOException {
+        int chunk = findChunk(entry.getDataOffset());
+        file.seek(chunkCompressed[chunk]);
+        InputStream raw = new FilterInputStream(Channels.newInputStream(file.getChannel())) {
+            @Override
+            public void close() {
+                // the archive file is owned by the reader
+            }
+        };
+        InputStream in = new GZIPInputStream(raw, GzipCodec.BUFFER);
+
+        long skip = entry.getDataOffset() - chunkUncompressed[chunk];
+        while (skip > 0) {
+            long res = in.skip(skip);
+            if (res <= 0) {
+                throw new IOException("Unexpected end of archive before entry " + entry.getName());
+            }
+            skip -= res;
+        }
+        return new BoundedInputStream(in, entry.getSize());
+    }
+
+    private int findChunk(long uncompressedOffset) {
+        int lo = 0;
+        int hi = chunkUncompressed.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (chunkUncompressed[mid] <= uncompressedOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long left;
+
+        BoundedInputStream(InputStream in, long size) {
+            super(in);
+            this.left = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                left--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int res = super.read(b, off, (int) Math.min(len, left));
+            if (res > 0) {
+                left -= res;
+            }
+            return res;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package ru.kasyan;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Holes of sparse files and the body of sparse entries in the GNU sparse
+ * format 1.0.
+ *
+ * Java has no SEEK_DATA/SEEK_HOLE, so holes are found by reading the file and
+ * looking for whole blocks of zeros. Blocks of written zeros are taken for
+ * holes as well, which leaves the extracted content the same.
+ *
+ * The body of a sparse entry starts with the map in decimal, one number per
+ * line: the number of data segments, then the offset and length of each. The
+ * map is padded with zeros to the 512-byte block and followed by the data of
+ * the segments. A file that ends in a hole gets a last segment of length zero
+ * at its end. On extraction the segments are written at their offsets and the
+ * file is extended to its real size, so the holes are never written.
+ */
+final class SparseFiles {
+    /**
+     * Granularity of hole detection, the usual file system block
+     */
+    static final int BLOCK = 4096;
+
+    /**
+     * Files smaller than this are not scanned for holes
+     */
+    static final long MIN_SIZE = 16 * BLOCK;
+
+    private static final int MAP_BLOCK = 512;
+    private static final int SCAN_BUFFER = 16 * BLOCK;
+    private static final int COPY_BUFFER = 64 * 1024;
+    private static final int MAX_SEGMENTS = 1024 * 1024;
+
+    private SparseFiles() {
+    }
+
+    /**
+     * Finds the data segments of the file
+     *
+     * @return offset and length of each segment one after another, or null if
+     * the file has no hole of a whole block
+     */
+    static long[] scan(FileChannel channel, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER);
+        long[] segments = new long[16];
+        int count = 0;
+        long dataStart = -1;
+
+        for (long pos = 0; pos < size; pos += buf.limit()) {
+            buf.clear();
+            buf.limit((int) Math.min(SCAN_BUFFER, size - pos));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + buf.position()) < 0) {
+                    throw new IOException("File is shorter than its size " + size);
+                }
+            }
+
+            for (int off = 0; off < buf.limit(); off += BLOCK) {
+                boolean zero = isZero(buf, off, Math.min(off + BLOCK, buf.limit()));
+                if (!zero && dataStart < 0) {
+                    dataStart = pos + off;
+                } else if (zero && dataStart >= 0) {
+                    segments = add(segments, count, dataStart, pos + off - dataStart);
+                    count += 2;
+                    dataStart = -1;
+                }
+            }
+        }
+        if (dataStart >= 0) {
+            segments = add(segments, count, dataStart, size - dataStart);
+            count += 2;
+        }
+
+        if (count == 2 && segments[0] == 0 && segments[1] == size) {
+            return null;
+        }
+        if (count == 0 || segments[count - 2] + segments[count - 1] < size) {
+            segments = add(segments, count, size, 0);
+            count += 2;
+        }
+        return Arrays.copyOf(segments, count);
+    }
+
+    /**
+     * Writes a sparse entry for the file with the segments found by
+     * {@link #scan}; the entry gets the size of the body
+     */
+    static void write(Entry entry, long[] segments, FileChannel channel, TarOutputStream out) throws IOException {
+        byte[] map = encodeMap(segments);
+        entry.getHeader().sparseSize = entry.getSize();
+        entry.setSize(map.length + dataSize(segments));
+
+        out.putNextEntry(entry);
+        out.write(map);
+        for (int i = 0; i < segments.length; i += 2) {
+            if (segments[i + 1] > 0) {
+                out.write(channel, segments[i], segments[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Restores the file from the body of a sparse entry read from the stream
+     */
+    static void extract(InputStream body, long realSize, File target) throws IOException {
+        InputStream in = new BufferedInputStream(body, MAP_BLOCK);
+        long[] segments = readMap(in, realSize);
+        byte[] buf = new byte[COPY_BUFFER];
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(0);
+            FileChannel dest = file.getChannel();
+            for (int i = 0; i < segments.length; i += 2) {
+                long pos = segments[i];
+                long left = segments[i + 1];
+                while (left > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of sparse entry " + target.getName());
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(buf, 0, n);
+                    while (data.hasRemaining()) {
+                        pos += dest.write(data, pos);
+                    }
+                    left -= n;
+                }
+            }
+            file.setLength(realSize);
+        }
+    }
+
+    /**
+     * Restores the file from the body of an indexed sparse entry, moving the
+     * segments with positional transfers from the archive channel
+     */
+    static void extract(FileChannel archive, IndexEntry entry, File target) throws IOException {
+        long[] segments = readMap(new BufferedInputStream(new ChannelInput(archive, entry.getDataOffset()), MAP_BLOCK),
+                entry.getRealSize());
+        // the map is all of the body that is not data
+        long src = entry.getDataOffset() + entry.getSize() - dataSize(segments);
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(0);
+            FileChannel dest = file.getChannel();
+            for (int i = 0; i < segments.length; i += 2) {
+                dest.position(segments[i]);
+                long left = segments[i + 1];
+                while (left > 0) {
+                    long res = archive.transferTo(src, left, dest);
+                    if (res <= 0) {
+                        throw new IOException("Unexpected end of archive in entry " + entry.getName());
+                    }
+                    src += res;
+                    left -= res;
+                }
+            }
+            file.setLength(entry.getRealSize());
+        }
+    }
+
+    static byte[] encodeMap(long[] segments) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(segments.length / 2).append('\n');
+        for (long value : segments) {
+            sb.append(value).append('\n');
+        }
+        byte[] map = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        return Arrays.copyOf(map, (map.length + MAP_BLOCK - 1) / MAP_BLOCK * MAP_BLOCK);
+    }
+
+    /**
+     * Reads the map and its padding from the start of the body
+     */
+    static long[] readMap(InputStream in, long realSize) throws IOException {
+        long[] read = {0};
+        long count = readNumber(in, read);
+        if (count > MAX_SEGMENTS) {
+            throw new IOException("Sparse map of " + count + " segments, possible tar file corruption");
+        }
+        long[] segments = new long[(int) count * 2];
+        for (int i = 0; i < segments.length; i += 2) {
+            segments[i] = readNumber(in, read);
+            segments[i + 1] = readNumber(in, read);
+            if (segments[i] + segments[i + 1] > realSize) {
+                throw new IOException("Sparse segment at " + segments[i] + " past the end of the file");
+            }
+        }
+
+        long padding = (MAP_BLOCK - read[0] % MAP_BLOCK) % MAP_BLOCK;
+        while (padding > 0) {
+            if (in.read() < 0) {
+                throw new IOException("Unexpected end of sparse map");
+            }
+            padding--;
+        }
+        return segments;
+    }
+
+    private static long dataSize(long[] segments) {
+        long size = 0;
+        for (int i = 1; i < segments.length; i += 2) {
+            size += segments[i];
+        }
+        return size;
+    }
+
+    private static long readNumber(InputStream in, long[] read) throws IOException {
+        long value = 0;
+        int digits = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < '0' || b > '9' || digits == 18) {
+                throw new IOException("Invalid sparse map at byte " + read[0]);
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+            read[0]++;
+        }
+        if (digits == 0) {
+            throw new IOException("Invalid sparse map at byte " + read[0]);
+        }
+        read[0]++;
+        return value;
+    }
+
+    private static boolean isZero(ByteBuffer buf, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (buf.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buf.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] add(long[] segments, int count, long offset, long length) {
+        if (count + 2 > segments.length) {
+            segments = Arrays.copyOf(segments, segments.length * 2);
+        }
+        segments[count] = offset;
+        segments[count + 1] = length;
+        return segments;
+    }
+
+    /**
+     * Reads the channel from a position without moving the position of the
+     * channel, which may be shared between threads
+     */
+    private static final class ChannelInput extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInput(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
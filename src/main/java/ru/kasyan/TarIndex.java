@@ -0,0 +1,202 @@
+package ru.kasyan;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary index of a tar archive.
+ *
+ * The index is written next to the archive as {@code <archive>.idx} and holds
+ * one {@link IndexEntry} per header together with the length, modification
+ * time and a checksum of the first and last headers of the archive it was
+ * built for, so a stale sidecar is detected and ignored even if the archive
+ * was re-created or replaced at the same length.
+ */
+public class TarIndex {
+    public static final String SUFFIX = ".idx";
+    private static final int MAGIC = 0x54494458; // TIDX
+    private static final int VERSION = 3; // 2 adds the real size of sparse entries, 3 the archive stamp
+    private static final int HEADER_BLOCK = 512;
+
+    private final List<IndexEntry> entries = new ArrayList<>();
+    private long archiveLength;
+    private long archiveModified = -1;
+    private long headerChecksum;
+
+    public static File sidecarFor(File archive) {
+        return new File(archive.getPath() + SUFFIX);
+    }
+
+    void add(IndexEntry entry) {
+        entries.add(entry);
+    }
+
+    public List<IndexEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Length in bytes of the archive this index describes
+     */
+    public long getArchiveLength() {
+        return archiveLength;
+    }
+
+    void setArchiveLength(long archiveLength) {
+        this.archiveLength = archiveLength;
+    }
+
+    /**
+     * Records the length, modification time and header checksum of the
+     * finished archive, which {@link #load(File)} compares with the archive
+     * before using the sidecar
+     */
+    void stamp(File archive) throws IOException {
+        archiveLength = archive.length();
+        archiveModified = modified(archive);
+        headerChecksum = headerChecksum(archive);
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            write(out);
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(archiveLength);
+        out.writeLong(archiveModified);
+        out.writeLong(headerChecksum);
+        out.writeInt(entries.size());
+        for (IndexEntry entry : entries) {
+            out.writeUTF(entry.getName());
+            out.writeLong(entry.getHeaderOffset());
+            out.writeLong(entry.getDataOffset());
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getModTime());
+            out.writeInt(entry.getMode());
+            out.writeByte(entry.getLinkFlag());
+            out.writeLong(entry.isSparse() ? entry.getRealSize() : -1);
+        }
+    }
+
+    public static TarIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return read(in);
+        }
+    }
+
+    static TarIndex read(DataInput in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * Reads the index, storing the names in the trie if one is given and
+     * mapping each name to its last entry
+     */
+    static TarIndex read(DataInput in, PathTrie<IndexEntry> names) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a tar index");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported tar index version " + version);
+        }
+
+        TarIndex index = new TarIndex();
+        index.archiveLength = in.readLong();
+        if (version >= 3) {
+            index.archiveModified = in.readLong();
+            index.headerChecksum = in.readLong();
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long headerOffset = in.readLong();
+            long dataOffset = in.readLong();
+            long size = in.readLong();
+            long modTime = in.readLong();
+            int mode = in.readInt();
+            byte linkFlag = in.readByte();
+            long realSize = version == 1 ? -1 : in.readLong();
+            if (names == null) {
+                index.add(new IndexEntry(name, headerOffset, dataOffset, size, modTime, mode, linkFlag, realSize));
+            } else {
+                PathTrie.Node<IndexEntry> node = names.node(name);
+                IndexEntry entry = new IndexEntry(node, headerOffset, dataOffset, size, modTime, mode, linkFlag, realSize);
+                node.setValue(entry);
+                index.add(entry);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Loads the sidecar index of the archive if it exists and matches the
+     * length, modification time and first and last headers of the archive.
+     * Sidecars of earlier versions carry no modification time and are never
+     * used.
+     *
+     * @return the index or null if there is no usable sidecar
+     */
+    public static TarIndex load(File archive) {
+        return load(archive, null);
+    }
+
+    /**
+     * Loads the sidecar like {@link #load(File)}, storing the names in the
+     * trie. If null is returned the trie may hold part of a stale or broken
+     * index and is to be discarded.
+     */
+    static TarIndex load(File archive, PathTrie<IndexEntry> names) {
+        File sidecar = sidecarFor(archive);
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            TarIndex index = read(in, names);
+            boolean current = index.archiveModified >= 0
+                    && index.archiveLength == archive.length()
+                    && index.archiveModified == modified(archive)
+                    && index.headerChecksum == index.headerChecksum(archive);
+            return current ? index : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long modified(File archive) throws IOException {
+        return Files.getLastModifiedTime(archive.toPath()).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * CRC32 of the header blocks of the first and the last entry, as found
+     * at the offsets of this index
+     */
+    private long headerChecksum(File archive) throws IOException {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        long last = 0;
+        for (IndexEntry entry : entries) {
+            last = Math.max(last, entry.getHeaderOffset());
+        }
+        CRC32 crc = new CRC32();
+        byte[] block = new byte[HEADER_BLOCK];
+        try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+            for (long offset : new long[]{entries.get(0).getHeaderOffset(), last}) {
+                raf.seek(offset);
+                raf.readFully(block);
+                crc.update(block, 0, block.length);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -1,8 +1,13 @@
 package ru.kasyan;
 
-import java.io.FilterInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by Kasyanenko Konstantin
@@ -13,16 +18,70 @@ public class TarInputStream extends FilterInputStream {
 	private static final int SKIP_BUFFER_SIZE = 2048;
 	private static final int HEADER_BLOCK = 512;
 	private static final int DATA_BLOCK = 512;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
 	private Entry currentEntry;
 	private long currentFileSize;
 	private long bytesRead;
 	private boolean defaultSkip = false;
+	private final byte[] header = new byte[HEADER_BLOCK];
+	private byte[] skipBuffer;
+	private byte[] copyBuffer;
+	private SeekableByteChannel channel;
+	private ArchiveListener listener = ArchiveListener.NONE;
 
+	/**
+	 * Reads the archive from a stream. If the stream is a {@link FileInputStream}
+	 * of a regular file unread entry data is skipped by repositioning its
+	 * channel; pipes, FIFOs and any other stream are skipped by reading.
+	 */
 	public TarInputStream(InputStream in) {
 		super(in);
 		currentFileSize = 0;
 		bytesRead = 0;
+
+		if (in instanceof FileInputStream) {
+			channel = seekableChannel((FileInputStream) in);
+		}
+	}
+
+	/**
+	 * Reads the archive from a seekable channel, skipping unread entry data by
+	 * repositioning the channel
+	 */
+	public TarInputStream(SeekableByteChannel channel) {
+		this(Channels.newInputStream(channel));
+		this.channel = channel;
+	}
+
+	/**
+	 * Reads the archive from a file through a buffer, skipping unread entry data
+	 * with {@link InputStream#skip} of the file stream
+	 */
+	public TarInputStream(File file) throws FileNotFoundException {
+		this(new BufferedInputStream(new FileInputStream(file)));
+		defaultSkip = true;
+	}
+
+	/**
+	 * Returns the channel of the stream if it can be repositioned, or null for
+	 * standard input, FIFOs and other streams that have no size
+	 */
+	private static FileChannel seekableChannel(FileInputStream in) {
+		FileChannel fc = in.getChannel();
+		try {
+			fc.position();
+			return fc.size() > 0 ? fc : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reports read entries, bytes and header and padding time to the listener
+	 */
+	public void setListener(ArchiveListener listener) {
+		this.listener = listener == null ? ArchiveListener.NONE : listener;
 	}
 
 	@Override
@@ -90,52 +149,189 @@ public class TarInputStream extends FilterInputStream {
 			}
 
 			bytesRead += br;
+			listener.bytesRead(br);
+		}
+
+		return br;
+	}
+
+	/**
+	 * Reads entry data into the buffer. Direct buffers are filled straight from
+	 * the channel when the archive is read from one.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the entry
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		if (dst.hasArray()) {
+			int res = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (res > 0) {
+				dst.position(dst.position() + res);
+			}
+			return res;
+		}
+		if (channel == null) {
+			if (copyBuffer == null) {
+				copyBuffer = new byte[COPY_BUFFER_SIZE];
+			}
+			int res = read(copyBuffer, 0, Math.min(copyBuffer.length, dst.remaining()));
+			if (res > 0) {
+				dst.put(copyBuffer, 0, res);
+			}
+			return res;
+		}
+
+		int limit = dst.limit();
+		if (currentEntry != null) {
+			long left = currentEntry.getSize() - currentFileSize;
+			if (left == 0) {
+				return -1;
+			} else if (left < dst.remaining()) {
+				dst.limit(dst.position() + (int) left);
+			}
+		}
+		int br;
+		try {
+			br = channel.read(dst);
+		} finally {
+			dst.limit(limit);
+		}
+
+		if (br > 0) {
+			if (currentEntry != null) {
+				currentFileSize += br;
+			}
+
+			bytesRead += br;
+			listener.bytesRead(br);
 		}
 
 		return br;
 	}
 
 	/**
-	 * Returns the next entry in the tar file
+	 * Returns the next entry in the tar file. PAX extended headers and GNU
+	 * long name and link entries are consumed here and applied to the entry
+	 * that follows them.
 	 * 
 	 * @return Entry
 	 * @throws IOException
 	 */
 	Entry getNextEntry() throws IOException {
+		Map<String, String> extended = null;
+
+		while (readNextHeader() != null) {
+			byte linkFlag = currentEntry.getHeader().linkFlag;
+			if (!PaxHeaders.isExtension(linkFlag)) {
+				if (extended != null) {
+					PaxHeaders.apply(extended, currentEntry.getHeader());
+				}
+				if (listener != ArchiveListener.NONE) {
+					listener.entryRead(currentEntry.getName(), currentEntry.getSize());
+				}
+				return currentEntry;
+			}
+
+			if (currentEntry.getSize() > PaxHeaders.MAX_EXTENSION) {
+				throw new IOException("Extended header of " + currentEntry.getSize() + " bytes, possible tar file corruption");
+			}
+			byte[] body = new byte[(int) currentEntry.getSize()];
+			int off = 0;
+			while (off < body.length) {
+				int res = read(body, off, body.length - off);
+				if (res < 0) {
+					throw new IOException("Unexpected end of archive in extended header");
+				}
+				off += res;
+			}
+			if (extended == null) {
+				extended = new HashMap<>();
+			}
+			PaxHeaders.collect(linkFlag, body, extended);
+		}
+		return null;
+	}
+
+	private Entry readNextHeader() throws IOException {
 		closeCurrentEntry();
 
-		byte[] header = new byte[HEADER_BLOCK];
-		byte[] theader = new byte[HEADER_BLOCK];
 		int tr = 0;
 
 		// Read full header
 		while (tr < HEADER_BLOCK) {
-			int res = read(theader, 0, HEADER_BLOCK - tr);
+			int res = read(header, tr, HEADER_BLOCK - tr);
 
 			if (res < 0) {
 				break;
 			}
 
-			System.arraycopy(theader, 0, header, tr, res);
 			tr += res;
 		}
 
+		Arrays.fill(header, tr, HEADER_BLOCK, (byte) 0);
+
 		// Check if record is null
 		boolean eof = true;
-		for (byte b : header) {
-			if (b != 0) {
+		for (int i = 0; i < tr; i++) {
+			if (header[i] != 0) {
 				eof = false;
 				break;
 			}
 		}
 
 		if (!eof) {
-			currentEntry = new Entry(header);
+			if (listener == ArchiveListener.NONE) {
+				currentEntry = new Entry(header);
+			} else {
+				long start = System.nanoTime();
+				currentEntry = new Entry(header);
+				listener.phase(ArchiveListener.Phase.HEADER, System.nanoTime() - start);
+			}
 		}
 
 		return currentEntry;
 	}
 
+	/**
+	 * Copies the unread rest of the current entry body to the output. When the
+	 * archive is read from a file channel the body is handed to
+	 * {@link TarOutputStream#write(FileChannel, long, long)} and skipped here,
+	 * so it can go from file to file without passing through the heap.
+	 *
+	 * @return number of bytes copied
+	 * @throws IOException
+	 */
+	long copyEntryTo(TarOutputStream out) throws IOException {
+		if (currentEntry == null) {
+			return 0;
+		}
+		long left = currentEntry.getSize() - currentFileSize;
+		if (left <= 0) {
+			return 0;
+		}
+
+		if (channel instanceof FileChannel) {
+			out.write((FileChannel) channel, channel.position(), left);
+			if (skip(left) != left) {
+				throw new IOException("Possible tar file corruption");
+			}
+			return left;
+		}
+
+		if (copyBuffer == null) {
+			copyBuffer = new byte[COPY_BUFFER_SIZE];
+		}
+		long copied = 0;
+		int res;
+		while ((res = read(copyBuffer, 0, copyBuffer.length)) != -1) {
+			out.write(copyBuffer, 0, res);
+			copied += res;
+		}
+		if (copied != left) {
+			throw new IOException("Unexpected end of archive in entry " + currentEntry.getName());
+		}
+		return copied;
+	}
+
 	/**
 	 * Returns the current offset (in bytes) from the beginning of the stream. 
 	 * This can be used to find out at which point in a tar file an entry's content begins, for instance. 
@@ -151,24 +347,25 @@ public class TarInputStream extends FilterInputStream {
 	 */
 	private void closeCurrentEntry() throws IOException {
 		if (currentEntry != null) {
-			if (currentEntry.getSize() > currentFileSize) {
-				// Not fully read, skip rest of the bytes
-				long bs = 0;
-				while (bs < currentEntry.getSize() - currentFileSize) {
-					long res = skip(currentEntry.getSize() - currentFileSize - bs);
-
-					if (res == 0 && currentEntry.getSize() - currentFileSize > 0) {
-						// I suspect file corruption
-						throw new IOException("Possible tar file corruption");
-					}
+			// Not fully read, skip rest of the bytes
+			while (currentFileSize < currentEntry.getSize()) {
+				long res = skip(currentEntry.getSize() - currentFileSize);
 
-					bs += res;
+				if (res <= 0) {
+					// I suspect file corruption
+					throw new IOException("Possible tar file corruption");
 				}
 			}
 
 			currentEntry = null;
 			currentFileSize = 0L;
-			skipPad();
+			if (listener == ArchiveListener.NONE) {
+				skipPad();
+			} else {
+				long start = System.nanoTime();
+				skipPad();
+				listener.phase(ArchiveListener.Phase.PADDING, System.nanoTime() - start);
+			}
 		}
 	}
 
@@ -182,40 +379,63 @@ public class TarInputStream extends FilterInputStream {
 			int extra = (int) (bytesRead % DATA_BLOCK);
 
 			if (extra > 0) {
-				long bs = 0;
-				while (bs < DATA_BLOCK - extra) {
-					long res = skip(DATA_BLOCK - extra - bs);
-					bs += res;
+				long left = DATA_BLOCK - extra;
+				while (left > 0) {
+					long res = skip(left);
+					if (res <= 0) {
+						break;
+					}
+					left -= res;
 				}
 			}
 		}
 	}
 
 	/**
-	 * Skips 'n' bytes on the InputStream<br>
-	 * Overrides default implementation of skip
+	 * Skips 'n' bytes on the InputStream, but never past the end of the current entry<br>
+	 * Overrides default implementation of skip: seekable sources are repositioned,
+	 * other streams are read through a reusable buffer
 	 * 
 	 */
 	@Override
 	public long skip(long n) throws IOException {
-		if (defaultSkip) {
+		if (currentEntry != null) {
+			n = Math.min(n, currentEntry.getSize() - currentFileSize);
+		}
+		if (n <= 0) {
+			return 0;
+		}
+
+		long bs;
+		if (channel != null) {
+			long position = channel.position();
+			long target = Math.min(position + n, channel.size());
+			channel.position(target);
+			bs = target - position;
+		} else if (defaultSkip) {
 			// use skip method of parent stream
 			// may not work if skip not implemented by parent
-			long bs = super.skip(n);
-			bytesRead += bs;
+			bs = super.skip(n);
+		} else {
+			return readSkip(n);
+		}
 
-			return bs;
+		bytesRead += bs;
+		listener.bytesRead(bs);
+		if (currentEntry != null) {
+			currentFileSize += bs;
 		}
+		return bs;
+	}
 
-		if (n <= 0) {
-			return 0;
+	private long readSkip(long n) throws IOException {
+		if (skipBuffer == null) {
+			skipBuffer = new byte[SKIP_BUFFER_SIZE];
 		}
 
 		long left = n;
-		byte[] sBuff = new byte[SKIP_BUFFER_SIZE];
-
 		while (left > 0) {
-			int res = read(sBuff, 0, (int) (left < SKIP_BUFFER_SIZE ? left : SKIP_BUFFER_SIZE));
+			int res = read(skipBuffer, 0, (int) (left < SKIP_BUFFER_SIZE ? left : SKIP_BUFFER_SIZE));
 			if (res < 0) {
 				break;
 			}
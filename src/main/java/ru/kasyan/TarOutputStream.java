@@ -1,6 +1,13 @@
 package ru.kasyan;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * Created by Kasyanenko Konstantin
@@ -8,35 +15,160 @@ import java.io.*;
  */
 public class TarOutputStream extends OutputStream {
     private static final int EOF_BLOCK = 1024;
+    private static final int COPY_BUFFER = 8192;
+    private static final long TRANSFER_THRESHOLD = 64 * 1024;
+    private static final byte[] ZERO_BLOCK = new byte[512];
     private final OutputStream out;
+    private FileChannel channel;
+    private BatchingChannelOutputStream batch;
+    private byte[] copyBuffer;
+    private final byte[] headerBuffer = new byte[512];
+    private TarIndex index;
+    private File indexFile;
+    private BlockGzipOutputStream blocks;
+    private ArchiveListener listener = ArchiveListener.NONE;
+    private Collection<IndexEntry> existing = Collections.emptyList();
     private long bytesWritten;
     private long currentFileSize;
     private Entry currentEntry;
+    private File archiveFile;
+    private long appendOffset = -1;
 
     TarOutputStream(OutputStream out) {
         this.out = out;
         bytesWritten = 0;
         currentFileSize = 0;
+
+        if (out instanceof BlockGzipOutputStream) {
+            blocks = (BlockGzipOutputStream) out;
+            blocks.setIndex( enableIndex( null ) );
+        }
     }
 
+	/**
+	 * Opens a file for writing. Headers, small bodies and padding are collected
+	 * in a {@link BatchingChannelOutputStream} and written in large batches.
+	 */
 	public TarOutputStream(final File fout) throws FileNotFoundException {
-		this.out = new BufferedOutputStream(new FileOutputStream(fout));
+		this(fout, ByteBuffer.allocateDirect(BatchingChannelOutputStream.DEFAULT_BATCH));
+	}
+
+	/**
+	 * Opens a file for writing, batching in the given buffer instead of
+	 * allocating one
+	 */
+	TarOutputStream(final File fout, final ByteBuffer batchBuffer) throws FileNotFoundException {
+		FileOutputStream fos = new FileOutputStream(fout);
+		this.archiveFile = fout;
+		this.channel = fos.getChannel();
+		this.batch = new BatchingChannelOutputStream(channel, batchBuffer);
+		this.out = batch;
 		bytesWritten = 0;
 		currentFileSize = 0;
 	}
 
 	/**
-	 * Opens a file for writing. 
+	 * Opens a file for writing. When appending, the end of the existing entries
+	 * is found by walking their headers, so archives padded to larger records
+	 * are appended to correctly; everything after the last entry is cut off
+	 * and rewritten on close. A file that is not a tar archive, or has anything
+	 * but zeros after its last entry, is left unchanged and an
+	 * {@link IOException} is thrown.
 	 */
 	public TarOutputStream(final File fout, final boolean append) throws IOException {
+		long end = 0;
+		if (append && fout.length() > 0) {
+			try (TarReader reader = new TarReader(fout)) {
+				end = reader.getEndOffset();
+				List<IndexEntry> entries = new ArrayList<>(reader.getEntries());
+				entries.sort(Comparator.comparingLong(IndexEntry::getHeaderOffset));
+				existing = entries;
+			}
+		}
 		RandomAccessFile raf = new RandomAccessFile(fout, "rw");
-		final long fileSize = fout.length();
-		if (append && fileSize > EOF_BLOCK) {
-			raf.seek(fileSize - EOF_BLOCK);
+		try {
+			if (append) {
+				checkPadding(raf, end);
+			}
+			raf.setLength(end);
+			raf.seek(end);
+			FileOutputStream fos = new FileOutputStream(raf.getFD());
+			channel = fos.getChannel();
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+		batch = new BatchingChannelOutputStream(channel, BatchingChannelOutputStream.DEFAULT_BATCH);
+		out = batch;
+		bytesWritten = end;
+		currentFileSize = 0;
+		archiveFile = fout;
+		if (append && end > 0) {
+			appendOffset = end;
 		}
-		out = new BufferedOutputStream(new FileOutputStream(raf.getFD()));
 	}
 
+	/**
+	 * Checks that only end-of-archive zeros follow the entries, which is all
+	 * that appending may cut off
+	 */
+	private static void checkPadding(RandomAccessFile raf, long end) throws IOException {
+		long length = raf.length();
+		if (end > length) {
+			throw new IOException("Archive ends inside an entry at " + length + ", possible tar file corruption");
+		}
+		byte[] buf = new byte[COPY_BUFFER];
+		raf.seek(end);
+		int count;
+		while ((count = raf.read(buf)) != -1) {
+			for (int i = 0; i < count; i++) {
+				if (buf[i] != 0) {
+					throw new IOException("Not a tar archive or data after its end at " + (raf.getFilePointer() - count + i));
+				}
+			}
+		}
+	}
+
+    /**
+     * Records the position of every entry written from now on, after the
+     * entries already present when appending. On close the index is written
+     * to the sidecar file, if one is given.
+     *
+     * @return the index being filled
+     */
+    public TarIndex enableIndex(File sidecar) {
+        if (index == null) {
+            index = new TarIndex();
+            for (IndexEntry entry : existing) {
+                index.add( entry );
+            }
+        }
+        indexFile = sidecar;
+        return index;
+    }
+
+    /**
+     * Returns the entries that were already in the archive when it was opened
+     * for appending, the last one of each name
+     */
+    Collection<IndexEntry> getExistingEntries() {
+        return existing;
+    }
+
+    /**
+     * Returns the index of written entries or null if indexing is not enabled
+     */
+    public TarIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Reports written entries, bytes and header and padding time to the listener
+     */
+    public void setListener(ArchiveListener listener) {
+        this.listener = listener == null ? ArchiveListener.NONE : listener;
+    }
+
     /**
      * Appends the EOF record and closes the stream
      * 
@@ -46,7 +178,39 @@ public class TarOutputStream extends OutputStream {
     public void close() throws IOException {
         closeCurrentEntry();
         write( new byte[EOF_BLOCK] );
+        if (index != null) {
+            index.setArchiveLength( bytesWritten );
+        }
         out.close();
+
+        if (indexFile != null) {
+            if (archiveFile != null) {
+                index.stamp( archiveFile );
+            }
+            index.write( indexFile );
+        }
+    }
+
+    /**
+     * Closes the underlying stream after a failure, without finishing the
+     * current entry or writing the EOF record. A partly filled write batch is
+     * dropped rather than written. An archive opened for appending is cut
+     * back to its entries from before and gets its EOF record again, so it
+     * stays as valid as it was.
+     */
+    void abort() throws IOException {
+        if (batch != null) {
+            batch.discard();
+        } else {
+            out.close();
+        }
+        if (appendOffset >= 0) {
+            try (RandomAccessFile raf = new RandomAccessFile( archiveFile, "rw" )) {
+                raf.setLength( appendOffset );
+                raf.seek( appendOffset );
+                raf.write( new byte[EOF_BLOCK] );
+            }
+        }
     }
     /**
      * Writes a byte to the stream and updates byte counters
@@ -57,6 +221,7 @@ public class TarOutputStream extends OutputStream {
     public void write(int b) throws IOException {
         out.write( b );
         bytesWritten++;
+        listener.bytesWritten( 1 );
 
         if (currentEntry != null) {
             currentFileSize++;
@@ -81,6 +246,7 @@ public class TarOutputStream extends OutputStream {
         out.write( b, off, len );
         
         bytesWritten += len;
+        listener.bytesWritten( len );
 
         if (currentEntry != null) {
             currentFileSize += len;
@@ -88,17 +254,160 @@ public class TarOutputStream extends OutputStream {
     }
 
     /**
-     * Writes the next tar entry header on the stream
+     * Writes {@code count} bytes of the current entry body from the source channel,
+     * starting at {@code position}. When the archive is backed by a file, large bodies
+     * are moved with {@link FileChannel#transferTo} so the data never enters the heap
+     * and small bodies are read straight into the write batch; plain output streams
+     * are fed through a reusable buffer.
+     *
+     * @throws IOException
+     */
+    public void write(FileChannel src, long position, long count) throws IOException {
+        if (currentEntry != null && !currentEntry.isDirectory()) {
+            if (currentEntry.getSize() < currentFileSize + count) {
+                throw new IOException( "The current entry[" + currentEntry.getName() + "] size["
+                        + currentEntry.getSize() + "] is smaller than the bytes[" + ( currentFileSize + count )
+                        + "] being written." );
+            }
+        }
+
+        if (channel != null && count >= TRANSFER_THRESHOLD) {
+            out.flush();
+            long done = 0;
+            while (done < count) {
+                long res = src.transferTo(position + done, count - done, channel);
+                if (res <= 0) {
+                    throw new IOException( "Unexpected end of source after " + done + " of " + count + " bytes" );
+                }
+                done += res;
+            }
+
+            counted( count );
+            return;
+        }
+
+        if (batch != null) {
+            batch.transferFrom( src, position, count );
+            counted( count );
+            return;
+        }
+
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER];
+        }
+        ByteBuffer buf = ByteBuffer.wrap(copyBuffer);
+        long done = 0;
+        while (done < count) {
+            buf.clear();
+            if (count - done < buf.capacity()) {
+                buf.limit((int) ( count - done ));
+            }
+            int res = src.read(buf, position + done);
+            if (res < 0) {
+                throw new IOException( "Unexpected end of source after " + done + " of " + count + " bytes" );
+            }
+            write( copyBuffer, 0, res );
+            done += res;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer to the current entry body. When the
+     * archive is backed by a file, large buffers go straight to its channel and
+     * small ones into the write batch, so direct buffers are written without a
+     * copy into the heap.
+     *
+     * @throws IOException
+     */
+    public void write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        if (currentEntry != null && !currentEntry.isDirectory()) {
+            if (currentEntry.getSize() < currentFileSize + count) {
+                throw new IOException( "The current entry[" + currentEntry.getName() + "] size["
+                        + currentEntry.getSize() + "] is smaller than the bytes[" + ( currentFileSize + count )
+                        + "] being written." );
+            }
+        }
+
+        if (src.hasArray()) {
+            write( src.array(), src.arrayOffset() + src.position(), count );
+            src.position( src.limit() );
+            return;
+        }
+
+        if (channel != null && count >= TRANSFER_THRESHOLD) {
+            out.flush();
+            while (src.hasRemaining()) {
+                channel.write( src );
+            }
+
+            counted( count );
+            return;
+        }
+
+        if (batch != null) {
+            batch.write( src );
+            counted( count );
+            return;
+        }
+
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER];
+        }
+        while (src.hasRemaining()) {
+            int len = Math.min( src.remaining(), copyBuffer.length );
+            src.get( copyBuffer, 0, len );
+            write( copyBuffer, 0, len );
+        }
+    }
+
+    private void counted(long count) {
+        bytesWritten += count;
+        listener.bytesWritten( count );
+
+        if (currentEntry != null) {
+            currentFileSize += count;
+        }
+    }
+
+    /**
+     * Writes the next tar entry header on the stream, preceded by a PAX
+     * extended header if the name, link name or size do not fit the ustar fields
      *
      * @throws IOException
      */
     void putNextEntry(Entry entry) throws IOException {
         closeCurrentEntry();
 
-        byte[] header = new byte[512];
-        entry.writeEntryHeader( header );
+        if (blocks != null) {
+            blocks.markBoundary();
+        }
 
-        write( header );
+        boolean timed = listener != ArchiveListener.NONE;
+        long start = timed ? System.nanoTime() : 0;
+        long headerOffset = bytesWritten;
+
+        byte[] extended = PaxHeaders.encode( entry.getHeader() );
+        if (extended != null) {
+            PaxHeaders.extensionEntry( entry, extended.length ).writeEntryHeader( headerBuffer );
+            write( headerBuffer );
+            write( extended );
+            pad();
+        }
+
+        if (entry.isSparse()) {
+            PaxHeaders.sparseStandIn( entry ).writeEntryHeader( headerBuffer );
+        } else {
+            entry.writeEntryHeader( headerBuffer );
+        }
+        write( headerBuffer );
+        if (timed) {
+            listener.phase( ArchiveListener.Phase.HEADER, System.nanoTime() - start );
+        }
+
+        if (index != null) {
+            index.add( new IndexEntry( entry, headerOffset, bytesWritten ) );
+        }
 
         currentEntry = entry;
     }
@@ -115,10 +424,17 @@ public class TarOutputStream extends OutputStream {
                         + currentEntry.getSize() + "] has not been fully written." );
             }
 
+            listener.entryWritten( currentEntry.getName(), currentEntry.getSize() );
             currentEntry = null;
             currentFileSize = 0;
 
-            pad();
+            if (listener == ArchiveListener.NONE) {
+                pad();
+            } else {
+                long start = System.nanoTime();
+                pad();
+                listener.phase( ArchiveListener.Phase.PADDING, System.nanoTime() - start );
+            }
         }
     }
 
@@ -132,7 +448,7 @@ public class TarOutputStream extends OutputStream {
             int extra = (int) ( bytesWritten % 512 );
 
             if (extra > 0) {
-                write( new byte[512 - extra] );
+                write( ZERO_BLOCK, 0, 512 - extra );
             }
         }
     }
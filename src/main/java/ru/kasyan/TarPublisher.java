@@ -0,0 +1,177 @@
+package ru.kasyan;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the entries of a tar stream, e.g. a download, as
+ * {@link EntryPart}s: the header of each entry followed by its body in chunks
+ * of at most {@link #CHUNK_SIZE} bytes.
+ *
+ * The stream is read only as far as the subscriber has requested, so a slow
+ * subscriber holds back the source instead of letting parts pile up. Reads
+ * block, so they run on the given executor, or on the thread calling
+ * {@link Subscription#request(long)} if there is none. The stream is closed
+ * when it ends, fails or the subscription is cancelled. A publisher reads its
+ * stream once and accepts a single subscriber.
+ *
+ * Subscribers of the Java 9 {@code java.util.concurrent.Flow} API are
+ * connected with {@code org.reactivestreams.FlowAdapters}.
+ */
+public class TarPublisher implements Publisher<EntryPart> {
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public TarPublisher(InputStream in) {
+        this(in, Runnable::run);
+    }
+
+    public TarPublisher(InputStream in, Executor executor) {
+        this.in = in;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super EntryPart> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("TarPublisher allows only a single subscriber"));
+            return;
+        }
+        EntrySubscription subscription = new EntrySubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Emits parts in a drain loop that only one thread runs at a time, so
+     * signals are serialized and a request from within onNext does not recurse
+     */
+    private final class EntrySubscription implements Subscription {
+        private final Subscriber<? super EntryPart> subscriber;
+        private final TarInputStream tis;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private long left;
+        private boolean done;
+
+        EntrySubscription(Subscriber<? super EntryPart> subscriber) {
+            this.subscriber = subscriber;
+            this.tis = new TarInputStream(in);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " parts, must be positive");
+            } else {
+                requested.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    if (cancelled) {
+                        finish();
+                    } else if (invalidRequest != null) {
+                        finish();
+                        subscriber.onError(invalidRequest);
+                    } else {
+                        emit();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            long r = requested.get();
+            long emitted = 0;
+            while (emitted != r && !cancelled && invalidRequest == null) {
+                EntryPart part;
+                try {
+                    part = next();
+                } catch (IOException | RuntimeException e) {
+                    finish();
+                    subscriber.onError(e);
+                    return;
+                }
+                if (part == null) {
+                    finish();
+                    subscriber.onComplete();
+                    return;
+                }
+                subscriber.onNext(part);
+                emitted++;
+            }
+            if (r != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+        }
+
+        private EntryPart next() throws IOException {
+            if (left > 0) {
+                byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, left)];
+                int n = tis.read(chunk);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of archive, " + left + " bytes of the entry missing");
+                }
+                left -= n;
+                return EntryPart.of(ByteBuffer.wrap(chunk, 0, n));
+            }
+            Entry entry = tis.getNextEntry();
+            if (entry == null) {
+                return null;
+            }
+            left = entry.getSize();
+            return EntryPart.of(entry);
+        }
+
+        private void finish() {
+            done = true;
+            try {
+                tis.close();
+            } catch (IOException e) {
+                // nothing left to report it to
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ru.kasyan;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Random-access reader for uncompressed tar archives.
+ *
+ * The archive is memory-mapped and its headers are scanned once, jumping from
+ * header to header by the entry size rounded up to the 512-byte block. The
+ * resulting name index lets any entry be opened as a {@link ByteBuffer} slice
+ * without reading the entries in front of it. When the same name occurs more
+ * than once the last occurrence wins, as it would on sequential extraction.
+ *
+ * If the archive has an up-to-date sidecar {@link TarIndex} it is loaded
+ * instead of scanning the headers.
+ *
+ * Names are kept in a {@link PathTrie}, which holds each directory level once
+ * and lets a whole subtree be listed without going through the other entries.
+ */
+public class TarReader implements Closeable {
+    private static final int HEADER_BLOCK = 512;
+    private static final int DATA_BLOCK = 512;
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private PathTrie<IndexEntry> index = new PathTrie<>();
+    private final List<IndexEntry> shadowed = new ArrayList<>();
+
+    private MappedByteBuffer window;
+    private long windowOffset;
+
+    public TarReader(File archive) throws IOException {
+        this.file = new RandomAccessFile(archive, "r");
+        this.channel = file.getChannel();
+        try {
+            TarIndex sidecar = TarIndex.load(archive, index);
+            if (sidecar != null) {
+                for (IndexEntry entry : sidecar.getEntries()) {
+                    if (entry.getNode().getValue() != entry) {
+                        shadowed.add(entry);
+                    }
+                }
+            } else {
+                index = new PathTrie<>();
+                scan();
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the entries of the archive in the order of their headers
+     */
+    public Collection<IndexEntry> getEntries() {
+        return Collections.unmodifiableCollection(index.values());
+    }
+
+    /**
+     * Returns the entry of the path and the entries below it, in the order of
+     * their headers. The path is matched by whole segments, see
+     * {@link PathTrie#getSubtree(String)}.
+     */
+    public List<IndexEntry> getEntries(String path) {
+        return Collections.unmodifiableList(index.getSubtree(path));
+    }
+
+    /**
+     * Returns the entries hidden by a later entry with the same name, in the
+     * order of their headers. They are not extracted, but e.g. each of several
+     * deletion lists of merged incremental archives takes effect at its own
+     * position.
+     */
+    public List<IndexEntry> getShadowedEntries() {
+        return Collections.unmodifiableList(shadowed);
+    }
+
+    /**
+     * Returns the index record for the entry name or null if there is no such entry
+     */
+    public IndexEntry getEntry(String name) {
+        return index.get(name);
+    }
+
+    /**
+     * Parses the full header of an indexed entry, e.g. to get its link name
+     */
+    public Entry readEntry(IndexEntry entry) throws IOException {
+        byte[] header = new byte[HEADER_BLOCK];
+        HeaderView view = new HeaderView().reset(header, 0);
+        Map<String, String> extended = null;
+        long offset = entry.getHeaderOffset();
+
+        readFully(header, offset);
+        while (PaxHeaders.isExtension(view.getLinkFlag())) {
+            if (extended == null) {
+                extended = new HashMap<>();
+            }
+            PaxHeaders.collect(view.getLinkFlag(), readExtension(offset + HEADER_BLOCK, view.getSize()), extended);
+            offset += HEADER_BLOCK + align(view.getSize());
+            readFully(header, offset);
+        }
+
+        Entry result = new Entry(header);
+        if (extended != null) {
+            PaxHeaders.apply(extended, result.getHeader());
+        }
+        return result;
+    }
+
+    /**
+     * Opens the content of the entry as a read-only buffer.
+     *
+     * @throws IOException if there is no such entry or it is too large to be mapped at once
+     */
+    public ByteBuffer open(String name) throws IOException {
+        IndexEntry entry = index.get(name);
+        if (entry == null) {
+            throw new IOException("Entry " + name + " not found");
+        }
+        return open(entry);
+    }
+
+    public ByteBuffer open(IndexEntry entry) throws IOException {
+        if (entry.getSize() > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + entry.getName() + " is too large to be mapped: " + entry.getSize());
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, entry.getDataOffset(), entry.getSize());
+    }
+
+    /**
+     * Returns the offset just past the body of the last entry, where the
+     * end-of-archive blocks start and where new entries can be appended
+     */
+    public long getEndOffset() {
+        long end = 0;
+        for (IndexEntry entry : index.values()) {
+            end = Math.max(end, entry.getDataOffset() + align(entry.getSize()));
+        }
+        return end;
+    }
+
+    /**
+     * Returns the channel of the archive, e.g. for positional reads or transfers
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    private void scan() throws IOException {
+        long length = channel.size();
+        byte[] header = new byte[HEADER_BLOCK];
+        HeaderView view = new HeaderView().reset(header, 0);
+        long offset = 0;
+        long entryOffset = -1;
+        Map<String, String> extended = null;
+
+        while (offset + HEADER_BLOCK <= length) {
+            readBlock(offset, header, length);
+            if (view.isZeroBlock()) {
+                break;
+            }
+            if (!view.isChecksumValid()) {
+                throw new IOException("Invalid header checksum at " + offset + ", possible tar file corruption");
+            }
+
+            long size = view.getSize();
+            long dataOffset = offset + HEADER_BLOCK;
+            if (entryOffset < 0) {
+                entryOffset = offset;
+            }
+            if (PaxHeaders.isExtension(view.getLinkFlag())) {
+                if (extended == null) {
+                    extended = new HashMap<>();
+                }
+                PaxHeaders.collect(view.getLinkFlag(), readExtension(dataOffset, size), extended);
+                offset = dataOffset + align(size);
+                continue;
+            }
+
+            String name = view.getName();
+            long modTime = view.getModTime();
+            long realSize = -1;
+            if (extended != null) {
+                name = PaxHeaders.getName(extended, name);
+                size = PaxHeaders.getLong(extended, PaxHeaders.SIZE, size);
+                modTime = PaxHeaders.getLong(extended, PaxHeaders.MTIME, modTime);
+                realSize = PaxHeaders.getRealSize(extended);
+            }
+            PathTrie.Node<IndexEntry> node = index.node(name);
+            if (node.getValue() != null) {
+                shadowed.add(node.getValue());
+            }
+            node.setValue(new IndexEntry(node, entryOffset, dataOffset, size,
+                    modTime, view.getMode(), view.getLinkFlag(), realSize));
+
+            offset = dataOffset + align(size);
+            entryOffset = -1;
+            extended = null;
+        }
+        window = null;
+    }
+
+    private byte[] readExtension(long offset, long size) throws IOException {
+        if (size > PaxHeaders.MAX_EXTENSION) {
+            throw new IOException("Extended header of " + size + " bytes at " + offset + ", possible tar file corruption");
+        }
+        byte[] body = new byte[(int) size];
+        readFully(body, offset);
+        return body;
+    }
+
+    private void readFully(byte[] dst, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dst);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("Unexpected end of archive at " + (offset + buf.position()));
+            }
+        }
+    }
+
+    private void readBlock(long offset, byte[] dst, long length) throws IOException {
+        if (window == null || offset < windowOffset || offset + dst.length > windowOffset + window.capacity()) {
+            windowOffset = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_WINDOW, length - offset));
+        }
+        window.position((int) (offset - windowOffset));
+        window.get(dst);
+    }
+
+    static long align(long size) {
+        long extra = size % DATA_BLOCK;
+        return extra == 0 ? size : size + DATA_BLOCK - extra;
+    }
+}
@@ -0,0 +1,127 @@
+package ru.kasyan;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes a stream of {@link EntryPart}s as a tar archive, e.g. uploads
+ * arriving over the network, without staging them on disk.
+ *
+ * Parts are written as they arrive on the thread that delivers them. At most
+ * {@link #PREFETCH} parts are requested ahead of the writer, so memory stays
+ * constant however large the archive is. Entries need their size up front;
+ * the archive is finished when the publisher completes. On an error either
+ * side the output is closed without the EOF record and {@link #getResult()}
+ * completes exceptionally.
+ *
+ * Publishers of the Java 9 {@code java.util.concurrent.Flow} API are
+ * connected with {@code org.reactivestreams.FlowAdapters}.
+ */
+public class TarSubscriber implements Subscriber<EntryPart> {
+    private static final Logger LOG = LoggerFactory.getLogger(TarSubscriber.class);
+
+    /**
+     * Number of parts requested ahead of the writer
+     */
+    static final int PREFETCH = 16;
+
+    private final TarOutputStream out;
+    private final CompletableFuture<Long> result = new CompletableFuture<>();
+    private Subscription subscription;
+    private long entries;
+    private boolean done;
+
+    public TarSubscriber(OutputStream out) {
+        this(new TarOutputStream(out));
+    }
+
+    public TarSubscriber(File archive) throws IOException {
+        this(new TarOutputStream(archive));
+    }
+
+    TarSubscriber(TarOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Completes with the number of entries once the archive is finished
+     */
+    public CompletableFuture<Long> getResult() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        Objects.requireNonNull(s, "subscription");
+        if (subscription != null) {
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        s.request(PREFETCH);
+    }
+
+    @Override
+    public void onNext(EntryPart part) {
+        Objects.requireNonNull(part, "part");
+        if (done) {
+            return;
+        }
+        try {
+            if (part.isHeader()) {
+                LOG.info("Adding: {}", part.getEntry().getName());
+                out.putNextEntry(part.getEntry());
+                entries++;
+            } else {
+                out.write(part.getData());
+            }
+        } catch (IOException | RuntimeException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        Objects.requireNonNull(t, "throwable");
+        if (!done) {
+            fail(t);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        if (done) {
+            return;
+        }
+        try {
+            // throws before closing the output if the last entry is short
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        done = true;
+        result.complete(entries);
+    }
+
+    private void fail(Throwable t) {
+        done = true;
+        try {
+            out.abort();
+        } catch (IOException e) {
+            t.addSuppressed(e);
+        }
+        result.completeExceptionally(t);
+    }
+}
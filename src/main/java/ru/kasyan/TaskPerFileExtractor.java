@@ -0,0 +1,250 @@
+package ru.kasyan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Extracts an archive read sequentially from a {@link TarInputStream} with one
+ * task per file, for archives of many tiny files where creating, writing and
+ * closing each file costs more than moving the data.
+ *
+ * The reading thread loads bodies of up to {@link #SMALL_FILE} bytes into
+ * memory and hands them to a task; larger bodies are written by the reading
+ * thread itself. Tasks run on virtual threads where the runtime has them and
+ * on a bounded pool otherwise. A semaphore taken before each hand-off bounds
+ * both the open files and the bodies held in memory. Works for compressed
+ * archives too, since only the stream is needed. Hard links and deletion
+ * lists wait for the tasks started before them.
+ */
+class TaskPerFileExtractor {
+    private static final Logger LOG = LoggerFactory.getLogger(TaskPerFileExtractor.class);
+
+    static final int SMALL_FILE = 64 * 1024;
+    private static final int MAX_POOL_THREADS = 64;
+    private static final int BUFFER = 8192;
+
+    private final int maxOpenFiles;
+    private final Semaphore openFiles;
+    private final Set<String> createdDirs = ConcurrentHashMap.newKeySet();
+    private final Set<String> linked = new HashSet<>();
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private byte[] buffer;
+
+    TaskPerFileExtractor(int maxOpenFiles) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("maxOpenFiles must be positive: " + maxOpenFiles);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+        this.openFiles = new Semaphore(maxOpenFiles);
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor when running on a JDK that has
+     * one, otherwise a fixed pool of at most {@link #MAX_POOL_THREADS} threads
+     */
+    static ExecutorService newTaskExecutor(int maxThreads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.min(maxThreads, MAX_POOL_THREADS));
+        }
+    }
+
+    void extract(TarInputStream tis, File destFolder) throws IOException {
+        ExecutorService executor = newTaskExecutor(maxOpenFiles);
+        try {
+            Map<String, Entry> links = new LinkedHashMap<>();
+
+            Entry entry;
+            while ((entry = tis.getNextEntry()) != null) {
+                checkFailure();
+                if (Archiver.DELETED_ENTRY.equals(entry.getName())) {
+                    // the list covers only what came before it, so that must be on disk first
+                    byte[] deleted = readBody(tis, entry);
+                    drain(links, destFolder);
+                    Archiver.applyDeletions(new ByteArrayInputStream(deleted), destFolder);
+                    // emptied directories may be gone now
+                    createdDirs.clear();
+                    continue;
+                }
+                if (entry.isHardLink()) {
+                    // a later link of the same name takes the place of the earlier one
+                    links.remove(entry.getName());
+                    links.put(entry.getName(), entry);
+                    continue;
+                }
+                // as does a later entry of any other kind
+                links.remove(entry.getName());
+                LOG.info("Extracting: {}", entry.getName());
+
+                File target = new File(destFolder, entry.getName());
+                if (entry.isDirectory()) {
+                    ensureDir(target);
+                    continue;
+                }
+
+                // a later entry with the same name must win
+                awaitPending(entry.getName());
+                if (linked.remove(entry.getName())) {
+                    // writing through the link would change the file it shares its data with
+                    Files.delete(target.toPath());
+                }
+                if (entry.isSparse()) {
+                    ensureDir(target.getParentFile());
+                    SparseFiles.extract(tis, entry.getRealSize(), target);
+                    continue;
+                }
+                if (entry.getSize() > SMALL_FILE) {
+                    ensureDir(target.getParentFile());
+                    writeLarge(tis, target);
+                    continue;
+                }
+
+                byte[] body = readBody(tis, entry);
+                acquire();
+                String name = entry.getName();
+                CompletableFuture<Void> task;
+                try {
+                    task = CompletableFuture.runAsync(() -> writeSmall(target, body), executor);
+                } catch (RejectedExecutionException e) {
+                    openFiles.release();
+                    throw new IOException(e);
+                }
+                pending.put(name, task);
+                task.whenComplete((result, error) -> pending.remove(name, task));
+            }
+
+            drain(links, destFolder);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the started tasks and then creates the hard links seen so far
+     * and not replaced by a later entry of the same name, whose targets exist
+     * only once all regular files before them are written
+     */
+    private void drain(Map<String, Entry> links, File destFolder) throws IOException {
+        // all permits back means every task has finished
+        acquire(maxOpenFiles);
+        openFiles.release(maxOpenFiles);
+        checkFailure();
+
+        for (Entry link : links.values()) {
+            LOG.info("Extracting: {}", link.getName());
+            File target = new File(destFolder, link.getName());
+            ensureDir(target.getParentFile());
+            Archiver.link(target, new File(destFolder, link.getLinkName()));
+            linked.add(link.getName());
+        }
+        links.clear();
+    }
+
+    /**
+     * Failures are recorded before the permit is released, so they are seen
+     * once all permits are back
+     */
+    private void writeSmall(File target, byte[] body) {
+        try {
+            ensureDir(target.getParentFile());
+            try (OutputStream out = new FileOutputStream(target)) {
+                out.write(body);
+            }
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            openFiles.release();
+        }
+    }
+
+    private void writeLarge(TarInputStream tis, File target) throws IOException {
+        if (buffer == null) {
+            buffer = new byte[BUFFER];
+        }
+        try (OutputStream out = new FileOutputStream(target)) {
+            int count;
+            while ((count = tis.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    private static byte[] readBody(TarInputStream tis, Entry entry) throws IOException {
+        byte[] body = new byte[(int) entry.getSize()];
+        int off = 0;
+        while (off < body.length) {
+            int res = tis.read(body, off, body.length - off);
+            if (res < 0) {
+                throw new IOException("Unexpected end of archive in entry " + entry.getName());
+            }
+            off += res;
+        }
+        return body;
+    }
+
+    private void awaitPending(String name) throws IOException {
+        CompletableFuture<Void> previous = pending.get(name);
+        if (previous == null) {
+            return;
+        }
+        try {
+            previous.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void acquire() throws InterruptedIOException {
+        acquire(1);
+    }
+
+    private void acquire(int permits) throws InterruptedIOException {
+        try {
+            openFiles.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure.get();
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        throw new IOException(cause);
+    }
+
+    private void ensureDir(File dir) {
+        String path = dir.getPath();
+        if (createdDirs.contains(path)) {
+            return;
+        }
+        dir.mkdirs();
+        createdDirs.add(path);
+    }
+}
@@ -1,16 +1,37 @@
 package ru.kasyan;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystemLoopException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static ru.kasyan.utils.Util.*;
 
@@ -86,6 +107,1301 @@ public class ArchiverTest {
         }
     }
 
+    @Test
+    public void testLargeFileRoundTrip() throws IOException {
+        byte[] content = new byte[300 * 1024 + 17];
+        rnd.nextBytes(content);
+        File big = new File(inDir, "big.bin");
+        Files.write(big.toPath(), content);
+        writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "small.txt"));
+
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "large");
+        archiver.extractArchive(new File(dir, "large.tar").getPath(), outDir.toString());
+
+        Assert.assertArrayEquals(content, Files.readAllBytes(new File(outDir, "in/big.bin").toPath()));
+        Assert.assertEquals(readFiles(new File(inDir, "small.txt").getPath()),
+                readFiles(new File(outDir, "in/small.txt").getPath()));
+    }
+
+    @Test
+    public void testRandomAccessReader() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            writeStringToFile("file " + i + " " + getRandomStr(getRndInt()), new File(inDir, "f" + i + ".txt"));
+        }
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "indexed");
+        File tar = new File(dir, "indexed.tar");
+
+        try (TarReader reader = new TarReader(tar)) {
+            Assert.assertEquals(20, reader.getEntries().size());
+            IndexEntry entry = reader.getEntry("in/f13.txt");
+            Assert.assertNotNull(entry);
+            Assert.assertEquals(0, entry.getHeaderOffset() % 512);
+            Assert.assertEquals(entry.getHeaderOffset() + 512, entry.getDataOffset());
+
+            ByteBuffer content = reader.open("in/f13.txt");
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            Assert.assertEquals(readFiles(new File(inDir, "f13.txt").getPath()), new String(bytes));
+        }
+
+        Assert.assertTrue(archiver.extractFile(tar.getPath(), "in/f7.txt", outDir.getPath()));
+        Assert.assertFalse(archiver.extractFile(tar.getPath(), "in/missing.txt", outDir.getPath()));
+        Assert.assertEquals(readFiles(new File(inDir, "f7.txt").getPath()),
+                readFiles(new File(outDir, "in/f7.txt").getPath()));
+        Assert.assertEquals(1, outDir.list().length);
+    }
+
+    @Test
+    public void testSidecarIndex() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            writeStringToFile(getRandomStr(100 + 700 * i), new File(inDir, "f" + i + ".txt"));
+        }
+        Archiver archiver = new Archiver();
+        archiver.setWriteIndex(true);
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "sidecar");
+        File tar = new File(dir, "sidecar.tar");
+
+        TarIndex index = TarIndex.load(tar);
+        Assert.assertNotNull(index);
+        Assert.assertEquals(tar.length(), index.getArchiveLength());
+        Assert.assertEquals(5, index.getEntries().size());
+
+        try (TarReader reader = new TarReader(tar)) {
+            for (IndexEntry entry : index.getEntries()) {
+                IndexEntry scanned = reader.getEntry(entry.getName());
+                Assert.assertEquals(entry.getDataOffset(), scanned.getDataOffset());
+                Assert.assertEquals(entry.getSize(), scanned.getSize());
+            }
+        }
+
+        // a sidecar that does not match the archive is ignored
+        File kept = new File(dir, "kept.idx");
+        Files.copy(TarIndex.sidecarFor(tar).toPath(), kept.toPath());
+        try (FileOutputStream grow = new FileOutputStream(tar, true)) {
+            grow.write(new byte[512]);
+        }
+        Assert.assertNull(TarIndex.load(tar));
+
+        // re-creating the archive without an index removes the sidecar; swapping two
+        // bodies keeps the length of the archive but moves the entries behind them
+        String f0 = readFiles(new File(inDir, "f0.txt").getPath());
+        writeStringToFile(readFiles(new File(inDir, "f1.txt").getPath()), new File(inDir, "f0.txt"));
+        writeStringToFile(f0, new File(inDir, "f1.txt"));
+        new Archiver().addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "sidecar");
+        Assert.assertEquals(index.getArchiveLength(), tar.length());
+        Assert.assertFalse(TarIndex.sidecarFor(tar).exists());
+
+        // and a sidecar left over from an archive of the same length is not used
+        Files.copy(kept.toPath(), TarIndex.sidecarFor(tar).toPath());
+        Assert.assertNull(TarIndex.load(tar));
+        try (TarReader reader = new TarReader(tar)) {
+            for (int i = 0; i < 5; i++) {
+                ByteBuffer content = reader.open("in/f" + i + ".txt");
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                Assert.assertEquals(readFiles(new File(inDir, "f" + i + ".txt").getPath()), new String(bytes));
+            }
+        }
+    }
+
+    private static List<String> describe(TarIndex index) {
+        return index.getEntries().stream()
+                .map(entry -> entry.getName() + " " + entry.getHeaderOffset() + " " + entry.getSize())
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testParallelArchiveIsIdentical() throws IOException {
+        for (int i = 0; i < 30; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(i % 2 == 0 ? inDir : inDir1, "f" + i + ".txt"));
+        }
+        byte[] big = new byte[200 * 1024];
+        rnd.nextBytes(big);
+        Files.write(new File(inDir, "big.bin").toPath(), big);
+        new File(inDir, "empty").mkdirs();
+        List<String> list = Arrays.asList(inDir.getAbsolutePath(), inDir1.getAbsolutePath());
+
+        Archiver serial = new Archiver();
+        serial.addToArchive(list, dir.toString(), "serial");
+
+        Archiver parallel = new Archiver();
+        parallel.setThreads(4);
+        parallel.setBufferBudget(256 * 1024);
+        parallel.addToArchive(list, dir.toString(), "parallel");
+
+        Assert.assertArrayEquals(Files.readAllBytes(new File(dir, "serial.tar").toPath()),
+                Files.readAllBytes(new File(dir, "parallel.tar").toPath()));
+
+        // a budget beyond the array limit still pre-reads into arrays that can be allocated
+        Assert.assertEquals(32 * 1024, ParallelArchiveWriter.preReadLimit(256 * 1024, 4));
+        Assert.assertEquals(ParallelArchiveWriter.MAX_PRE_READ, ParallelArchiveWriter.preReadLimit(Long.MAX_VALUE, 1));
+        Assert.assertEquals(ParallelArchiveWriter.MAX_PRE_READ, ParallelArchiveWriter.preReadLimit(16L << 30, 2));
+        parallel.setThreads(2);
+        parallel.setBufferBudget(Long.MAX_VALUE);
+        parallel.addToArchive(list, dir.toString(), "unbounded");
+        Assert.assertArrayEquals(Files.readAllBytes(new File(dir, "serial.tar").toPath()),
+                Files.readAllBytes(new File(dir, "unbounded.tar").toPath()));
+    }
+
+    @Test
+    public void testPipelinedArchiveIsIdentical() throws IOException {
+        for (int i = 0; i < 30; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(i % 2 == 0 ? inDir : inDir1, "f" + i + ".txt"));
+        }
+        byte[] big = new byte[300 * 1024 + 7];
+        rnd.nextBytes(big);
+        Files.write(new File(inDir, "big.bin").toPath(), big);
+        new File(inDir, "empty").mkdirs();
+        new File(inDir1, "zero").createNewFile();
+        List<String> list = Arrays.asList(inDir.getAbsolutePath(), inDir1.getAbsolutePath());
+
+        Archiver serial = new Archiver();
+        serial.addToArchive(list, dir.toString(), "serial");
+
+        Archiver pipelined = new Archiver();
+        pipelined.setPipelined(true);
+        pipelined.setBufferBudget(64 * 1024);
+        pipelined.addToArchive(list, dir.toString(), "pipelined");
+
+        Assert.assertArrayEquals(Files.readAllBytes(new File(dir, "serial.tar").toPath()),
+                Files.readAllBytes(new File(dir, "pipelined.tar").toPath()));
+    }
+
+    @Test
+    public void testArchiveStats() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "f" + i + ".txt"));
+        }
+        new File(inDir, "empty").mkdirs();
+
+        ArchiveStats stats = new ArchiveStats();
+        Archiver archiver = new Archiver();
+        archiver.setListener(stats);
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "stats");
+        long length = new File(dir, "stats.tar").length();
+
+        Assert.assertEquals(21, stats.getEntriesWritten());
+        Assert.assertEquals(length, stats.getBytesWritten());
+        Assert.assertTrue(stats.getPhaseNanos(ArchiveListener.Phase.HEADER) > 0);
+        Assert.assertTrue(stats.getPhaseNanos(ArchiveListener.Phase.COPY) > 0);
+
+        stats.reset();
+        archiver.extractArchive(new File(dir, "stats.tar").getPath(), outDir.getPath());
+        Assert.assertEquals(21, stats.getEntriesRead());
+        Assert.assertEquals(0, stats.getEntriesWritten());
+        // reading stops at the first of the two end-of-archive blocks
+        Assert.assertEquals(length - 512, stats.getBytesRead());
+
+        // the parallel writer reports the queue as it fills and drains, not only when full
+        List<Integer> depths = new ArrayList<>();
+        archiver.setThreads(2);
+        archiver.setListener(new ArchiveListener() {
+            @Override
+            public void queueDepth(int depth) {
+                depths.add(depth);
+            }
+        });
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "stats-parallel");
+        Assert.assertEquals(Integer.valueOf(1), depths.get(0));
+        Assert.assertEquals(Integer.valueOf(0), depths.get(depths.size() - 1));
+        Assert.assertEquals(4, (int) Collections.max(depths));
+    }
+
+    @Test
+    public void testMergeAndTransformArchives() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(i % 2 == 0 ? inDir : inDir1, "f" + i + ".txt"));
+        }
+        byte[] big = new byte[200 * 1024];
+        rnd.nextBytes(big);
+        Files.write(new File(inDir, "big.bin").toPath(), big);
+        new File(inDir1, "empty").mkdirs();
+
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "a");
+        archiver.setCodec(new GzipCodec());
+        archiver.addToArchive(Collections.singletonList(inDir1.getAbsolutePath()), dir.toString(), "b");
+        archiver.setCodec(null);
+
+        int merged = archiver.mergeArchives(Arrays.asList(new File(dir, "a.tar").getPath(),
+                new File(dir, "b.tar.gz").getPath()), dir.toString(), "merged");
+        Assert.assertEquals(12, merged);
+        archiver.extractArchive(new File(dir, "merged.tar").getPath(), outDir.getPath());
+        for (int i = 0; i < 10; i++) {
+            String name = (i % 2 == 0 ? "in/" : "in1/") + "f" + i + ".txt";
+            Assert.assertEquals(readFiles(new File(dir, name).getPath()), readFiles(new File(outDir, name).getPath()));
+        }
+        Assert.assertArrayEquals(big, Files.readAllBytes(new File(outDir, "in/big.bin").toPath()));
+        Assert.assertTrue(new File(outDir, "in1/empty").isDirectory());
+
+        String longDir = getRandomStr(60) + "/" + getRandomStr(60);
+        archiver.transformArchive(new File(dir, "merged.tar").getPath(), dir.toString(), "renamed", entry -> {
+            if (entry.getName().equals("in/f0.txt")) {
+                return null;
+            }
+            entry.setName(entry.getName().replaceFirst("^in/", longDir + "/"));
+            return entry;
+        });
+        File renamedOut = new File(dir, "renamed-out");
+        archiver.extractArchive(new File(dir, "renamed.tar").getPath(), renamedOut.getPath());
+        Assert.assertFalse(new File(renamedOut, longDir + "/f0.txt").exists());
+        Assert.assertEquals(readFiles(new File(inDir, "f2.txt").getPath()),
+                readFiles(new File(renamedOut, longDir + "/f2.txt").getPath()));
+        Assert.assertArrayEquals(big, Files.readAllBytes(new File(renamedOut, longDir + "/big.bin").toPath()));
+        Assert.assertTrue(new File(renamedOut, "in1/empty").isDirectory());
+
+        // a run that fails leaves neither the end of archive nor a sidecar index
+        Archiver indexed = new Archiver();
+        indexed.setWriteIndex(true);
+        try {
+            indexed.transformArchive(new File(dir, "merged.tar").getPath(), dir.toString(), "failed-transform", entry -> {
+                if (entry.getName().equals("in/big.bin")) {
+                    throw new IllegalStateException("no big files");
+                }
+                return entry;
+            });
+            Assert.fail("the transform should fail");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("no big files", e.getMessage());
+        }
+        try {
+            indexed.mergeArchives(Arrays.asList(new File(dir, "a.tar").getPath(),
+                    new File(dir, "missing.tar").getPath()), dir.toString(), "failed-merge");
+            Assert.fail("the merge should fail");
+        } catch (FileNotFoundException e) {
+            LOG.info("Merge failed: {}", e.getMessage());
+        }
+        for (String name : Arrays.asList("failed-transform.tar", "failed-merge.tar")) {
+            File failed = new File(dir, name);
+            Assert.assertFalse(TarIndex.sidecarFor(failed).exists());
+            byte[] written = Files.readAllBytes(failed.toPath());
+            Assert.assertFalse(name, written.length >= 1024
+                    && Arrays.equals(new byte[1024], Arrays.copyOfRange(written, written.length - 1024, written.length)));
+        }
+    }
+
+    @Test
+    public void testParallelScanKeepsOrder() throws IOException {
+        for (int i = 0; i < 6; i++) {
+            File sub = new File(inDir, "d" + i + "/e" + i % 3);
+            sub.mkdirs();
+            for (int j = 0; j < i; j++) {
+                writeStringToFile(getRandomStr(10), new File(sub, "f" + j + ".txt"));
+            }
+            new File(inDir, "d" + i + "/empty" + i).mkdirs();
+            writeStringToFile(getRandomStr(10), new File(inDir, "top" + i + ".txt"));
+        }
+        new File(inDir1, "x/y/z").mkdirs();
+        File single = new File(dir, "single.txt");
+        writeStringToFile(getRandomStr(10), single);
+        List<String> paths = Arrays.asList(inDir.getAbsolutePath(), single.getAbsolutePath(), inDir1.getAbsolutePath());
+
+        List<String> serial = new FileTreeScanner(1).scan(paths).stream()
+                .map(source -> source.name)
+                .collect(Collectors.toList());
+        Assert.assertTrue(serial.contains("in/d1/empty1/"));
+        Assert.assertTrue(serial.contains("in/d0/e0/"));
+        Assert.assertTrue(serial.contains("in1/x/y/z/"));
+        for (int threads : new int[]{2, 4}) {
+            Assert.assertEquals(serial, new FileTreeScanner(threads).scan(paths).stream()
+                    .map(source -> source.name)
+                    .collect(Collectors.toList()));
+        }
+
+        // links are archived as what they point to, and a link to an ancestor is refused
+        File target = new File(inDir, "top1.txt");
+        try {
+            Files.createSymbolicLink(new File(inDir, "link.txt").toPath(), target.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Assume.assumeNoException(e);
+        }
+        for (int threads : new int[]{1, 4}) {
+            Archiver.Source link = new FileTreeScanner(threads).scan(paths).stream()
+                    .filter(source -> source.name.equals("in/link.txt"))
+                    .findFirst()
+                    .orElseThrow(AssertionError::new);
+            Assert.assertTrue(link.attrs.isRegularFile());
+            Assert.assertEquals(target.length(), link.attrs.size());
+        }
+        Files.createSymbolicLink(new File(inDir, "d2/e2/up").toPath(), inDir.toPath());
+        for (int threads : new int[]{1, 4}) {
+            try {
+                new FileTreeScanner(threads).scan(paths);
+                Assert.fail("scan of a link loop completed");
+            } catch (FileSystemLoopException e) {
+                LOG.info("Loop: {}", e.getFile());
+            }
+        }
+    }
+
+    @Test
+    public void testBatchedWritesMatchUnbatched() throws IOException {
+        List<byte[]> bodies = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            bodies.add(new byte[rnd.nextInt(3000)]);
+        }
+        bodies.add(25, new byte[5 * 4096 + 7]);
+        bodies.add(new byte[100 * 1024]);
+        for (byte[] body : bodies) {
+            rnd.nextBytes(body);
+        }
+        File source = new File(dir, "bodies.bin");
+        try (OutputStream out = new FileOutputStream(source)) {
+            for (byte[] body : bodies) {
+                out.write(body);
+            }
+        }
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        writeBodies(new TarOutputStream(plain), bodies, source);
+        File batched = new File(dir, "batched.tar");
+        writeBodies(new TarOutputStream(batched, ByteBuffer.allocateDirect(4096)), bodies, source);
+        Assert.assertArrayEquals(plain.toByteArray(), Files.readAllBytes(batched.toPath()));
+
+        // an aborted archive keeps only the batches written before the failure
+        File aborted = new File(dir, "aborted.tar");
+        TarOutputStream out = new TarOutputStream(aborted, ByteBuffer.allocateDirect(64 * 1024));
+        out.putNextEntry(new Entry("partial.bin", 1000, 0, 0644));
+        out.write(new byte[600]);
+        out.abort();
+        Assert.assertEquals(0, aborted.length());
+    }
+
+    /**
+     * Writes every other body from the array and the rest from the channel of
+     * the file holding all of them
+     */
+    private static void writeBodies(TarOutputStream out, List<byte[]> bodies, File source) throws IOException {
+        try (FileInputStream in = new FileInputStream(source)) {
+            long position = 0;
+            for (int i = 0; i < bodies.size(); i++) {
+                byte[] body = bodies.get(i);
+                out.putNextEntry(new Entry("f" + i + ".bin", body.length, 0, 0644));
+                if (i % 2 == 0) {
+                    out.write(body);
+                } else {
+                    out.write(in.getChannel(), position, body.length);
+                }
+                position += body.length;
+            }
+        }
+        out.close();
+    }
+
+    @Test
+    public void testParallelExtract() throws IOException {
+        File nested = new File(inDir, "a/b/c");
+        nested.mkdirs();
+        for (int i = 0; i < 40; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(i % 3 == 0 ? nested : inDir, "f" + i + ".txt"));
+        }
+        new File(inDir, "empty").mkdirs();
+
+        Archiver archiver = new Archiver();
+        archiver.setThreads(4);
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "pextract");
+        archiver.extractArchive(new File(dir, "pextract.tar").getPath(), outDir.getPath());
+
+        for (int i = 0; i < 40; i++) {
+            String name = (i % 3 == 0 ? "a/b/c/" : "") + "f" + i + ".txt";
+            Assert.assertEquals(readFiles(new File(inDir, name).getPath()),
+                    readFiles(new File(outDir, "in/" + name).getPath()));
+        }
+        Assert.assertTrue(new File(outDir, "in/empty").isDirectory());
+    }
+
+    @Test
+    public void testTaskPerFileExtract() throws IOException {
+        File nested = new File(inDir, "a/b");
+        nested.mkdirs();
+        for (int i = 0; i < 60; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(i % 3 == 0 ? nested : inDir, "f" + i + ".txt"));
+        }
+        byte[] big = new byte[TaskPerFileExtractor.SMALL_FILE + 1000];
+        rnd.nextBytes(big);
+        Files.write(new File(inDir, "big.bin").toPath(), big);
+        new File(inDir, "empty").mkdirs();
+
+        Archiver archiver = new Archiver();
+        archiver.setCodec(new GzipCodec());
+        archiver.setMaxOpenFiles(4);
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "tasks");
+        archiver.extractArchive(new File(dir, "tasks.tar.gz").getPath(), outDir.getPath());
+
+        for (int i = 0; i < 60; i++) {
+            String name = (i % 3 == 0 ? "a/b/" : "") + "f" + i + ".txt";
+            Assert.assertEquals(readFiles(new File(inDir, name).getPath()),
+                    readFiles(new File(outDir, "in/" + name).getPath()));
+        }
+        Assert.assertArrayEquals(big, Files.readAllBytes(new File(outDir, "in/big.bin").toPath()));
+        Assert.assertTrue(new File(outDir, "in/empty").isDirectory());
+    }
+
+    @Test
+    public void testCompressedArchives() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            writeStringToFile(getRandomStr(getRndInt() * 20), new File(inDir, "f" + i + ".txt"));
+        }
+        List<String> list = Collections.singletonList(inDir.getAbsolutePath());
+        new Archiver().addToArchive(list, dir.toString(), "plain");
+        byte[] plain = Files.readAllBytes(new File(dir, "plain.tar").toPath());
+
+        Archiver gzip = new Archiver();
+        gzip.setCodec(new GzipCodec());
+        gzip.addToArchive(list, dir.toString(), "single");
+
+        Archiver pigz = new Archiver();
+        pigz.setCodec(new ParallelGzipCodec(4, 4096));
+        pigz.addToArchive(list, dir.toString(), "parallel");
+
+        for (String name : Arrays.asList("single.tar.gz", "parallel.tar.gz")) {
+            File archive = new File(dir, name);
+            Assert.assertTrue(archive.length() < plain.length);
+            try (InputStream in = new GZIPInputStream(new FileInputStream(archive))) {
+                ByteArrayOutputStream tar = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int res;
+                while ((res = in.read(buf)) != -1) {
+                    tar.write(buf, 0, res);
+                }
+                Assert.assertArrayEquals(plain, tar.toByteArray());
+            }
+
+            File dest = new File(outDir, name);
+            new Archiver().extractArchive(archive.getPath(), dest.getPath());
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(readFiles(new File(inDir, "f" + i + ".txt").getPath()),
+                        readFiles(new File(dest, "in/f" + i + ".txt").getPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testExtractSubtree() throws IOException {
+        for (String sub : Arrays.asList("a/b", "a/bc", "d")) {
+            File folder = new File(inDir, sub);
+            folder.mkdirs();
+            for (int i = 0; i < 5; i++) {
+                writeStringToFile(sub + " " + i + " " + getRandomStr(getRndInt()), new File(folder, "f" + i + ".txt"));
+            }
+        }
+
+        List<Archiver> writers = Arrays.asList(new Archiver(), new Archiver(), new Archiver(), new Archiver());
+        writers.get(1).setWriteIndex(true);
+        writers.get(2).setCodec(new SeekableGzipCodec(4 * 1024));
+        writers.get(3).setCodec(new GzipCodec());
+        List<String> tarNames = Arrays.asList("plain", "indexed", "seekable", "gzip");
+        for (int i = 0; i < writers.size(); i++) {
+            writers.get(i).addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), tarNames.get(i));
+        }
+        Assert.assertTrue(TarIndex.sidecarFor(new File(dir, "indexed.tar")).isFile());
+
+        try (TarReader reader = new TarReader(new File(dir, "plain.tar"))) {
+            List<IndexEntry> subtree = reader.getEntries("in/a/b");
+            Assert.assertEquals(5, subtree.size());
+            for (int i = 1; i < subtree.size(); i++) {
+                Assert.assertTrue(subtree.get(i - 1).getHeaderOffset() < subtree.get(i).getHeaderOffset());
+            }
+            Assert.assertEquals(15, reader.getEntries("in/").size());
+            Assert.assertEquals("in/a/bc/f3.txt", reader.getEntry("in/a/bc/f3.txt").getName());
+        }
+
+        List<String> archives = Arrays.asList("plain.tar", "indexed.tar", "seekable.tar.gz", "gzip.tar.gz");
+        for (String archive : archives) {
+            File target = new File(outDir, archive);
+            Assert.assertEquals(archive, 5, new Archiver().extractSubtree(new File(dir, archive).getPath(), "in/a/b", target.getPath()));
+            Assert.assertEquals(Collections.singletonList("b"), Arrays.asList(new File(target, "in/a").list()));
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(readFiles(new File(inDir, "a/b/f" + i + ".txt").getPath()),
+                        readFiles(new File(target, "in/a/b/f" + i + ".txt").getPath()));
+            }
+            Assert.assertEquals(0, new Archiver().extractSubtree(new File(dir, archive).getPath(), "in/x", target.getPath()));
+        }
+    }
+
+    @Test
+    public void testSeekableCompressedArchive() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            writeStringToFile(getRandomStr(getRndInt() * 10), new File(inDir, "f" + i + ".txt"));
+        }
+        byte[] big = new byte[100 * 1024];
+        rnd.nextBytes(big);
+        Files.write(new File(inDir, "big.bin").toPath(), big);
+
+        Archiver archiver = new Archiver();
+        archiver.setCodec(new SeekableGzipCodec(8 * 1024));
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "seekable");
+        File archive = new File(dir, "seekable.tar.gz");
+        Assert.assertTrue(SeekableTarGzReader.isSeekable(archive));
+
+        try (SeekableTarGzReader reader = new SeekableTarGzReader(archive)) {
+            Assert.assertEquals(51, reader.getEntries().size());
+        }
+
+        Archiver extractor = new Archiver();
+        Assert.assertTrue(extractor.extractFile(archive.getPath(), "in/f42.txt", outDir.getPath()));
+        Assert.assertTrue(extractor.extractFile(archive.getPath(), "in/big.bin", outDir.getPath()));
+        Assert.assertEquals(readFiles(new File(inDir, "f42.txt").getPath()),
+                readFiles(new File(outDir, "in/f42.txt").getPath()));
+        Assert.assertArrayEquals(big, Files.readAllBytes(new File(outDir, "in/big.bin").toPath()));
+
+        File full = new File(outDir, "full");
+        extractor.extractArchive(archive.getPath(), full.getPath());
+        Assert.assertEquals(51, new File(full, "in").list().length);
+    }
+
+    @Test
+    public void testListAndSeekingSkip() throws IOException {
+        byte[][] contents = new byte[6][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new byte[1000 * i * i + 13];
+            rnd.nextBytes(contents[i]);
+            Files.write(new File(inDir, "f" + i + ".bin").toPath(), contents[i]);
+        }
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "listed");
+        File tar = new File(dir, "listed.tar");
+
+        List<Entry> listed = archiver.list(tar.getPath());
+        Assert.assertEquals(contents.length, listed.size());
+        for (Entry entry : listed) {
+            int i = Integer.parseInt(entry.getName().replaceAll("\\D", ""));
+            Assert.assertEquals(contents[i].length, entry.getSize());
+        }
+
+        try (TarInputStream tis = new TarInputStream(new FileInputStream(tar))) {
+            checkSkips(tis, contents);
+        }
+
+        // a FIFO has a file channel too, but one that cannot be repositioned
+        File fifo = new File(dir, "listed.fifo");
+        boolean created;
+        try {
+            created = new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            created = false;
+        }
+        Assume.assumeTrue("mkfifo is not available", created);
+        ExecutorService feeder = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> fed = feeder.submit(() -> {
+                try (OutputStream out = new FileOutputStream(fifo)) {
+                    return Files.copy(tar.toPath(), out);
+                }
+            });
+            try (FileInputStream in = new FileInputStream(fifo); TarInputStream tis = new TarInputStream(in)) {
+                checkSkips(tis, contents);
+                // read the end of archive so the feeder finishes
+                while (in.read(new byte[512]) != -1) {
+                }
+            }
+            Assert.assertEquals(tar.length(), (long) fed.get(10, TimeUnit.SECONDS));
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new IOException(e);
+        } finally {
+            feeder.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads a few bytes of every other entry and checks that skipping keeps the
+     * stream aligned
+     */
+    private void checkSkips(TarInputStream tis, byte[][] contents) throws IOException {
+        Entry entry;
+        int n = 0;
+        while ((entry = tis.getNextEntry()) != null) {
+            int i = Integer.parseInt(entry.getName().replaceAll("\\D", ""));
+            if (n++ % 2 == 0) {
+                byte[] head = new byte[7];
+                Assert.assertEquals(7, tis.read(head));
+                Assert.assertArrayEquals(Arrays.copyOf(contents[i], 7), head);
+                Assert.assertEquals(entry.getSize() - 7 - 3, tis.skip(entry.getSize() - 7 - 3));
+                byte[] tail = new byte[10];
+                Assert.assertEquals(3, tis.read(tail));
+                Assert.assertEquals(0, tis.skip(100));
+            }
+        }
+        Assert.assertEquals(contents.length, n);
+    }
+
+    @Test
+    public void testIncrementalArchive() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "f" + i + ".txt"));
+        }
+        List<String> list = Collections.singletonList(inDir.getAbsolutePath());
+        Archiver archiver = new Archiver();
+        Manifest full = archiver.addToArchiveIncremental(list, dir.toString(), "level0", null);
+        Assert.assertEquals(10, archiver.list(new File(dir, "level0.tar").getPath()).size());
+
+        File manifestFile = new File(dir, "backup.manifest");
+        full.save(manifestFile);
+
+        writeStringToFile("changed " + getRandomStr(getRndInt()), new File(inDir, "f3.txt"));
+        new File(inDir, "f3.txt").setLastModified(System.currentTimeMillis() + 5000);
+        writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "new.txt"));
+        Assert.assertTrue(new File(inDir, "f5.txt").delete());
+
+        archiver.addToArchiveIncremental(list, dir.toString(), "level1", Manifest.load(manifestFile));
+        List<String> names = archiver.list(new File(dir, "level1.tar").getPath()).stream()
+                .map(Entry::getName)
+                .collect(Collectors.toList());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("in/f3.txt", "in/new.txt", Archiver.DELETED_ENTRY)),
+                new HashSet<>(names));
+
+        archiver.extractArchive(new File(dir, "level0.tar").getPath(), outDir.getPath());
+        archiver.extractArchive(new File(dir, "level1.tar").getPath(), outDir.getPath());
+        Assert.assertFalse(new File(outDir, "in/f5.txt").exists());
+        Assert.assertFalse(new File(outDir, Archiver.DELETED_ENTRY).exists());
+        for (String name : new File(inDir.getPath()).list()) {
+            Assert.assertEquals(readFiles(new File(inDir, name).getPath()), readFiles(new File(outDir, "in/" + name).getPath()));
+        }
+
+        // a failed run leaves neither an EOF record nor a sidecar index behind
+        Archiver failing = new Archiver();
+        failing.setWriteIndex(true);
+        failing.setListener(new ArchiveListener() {
+            @Override
+            public void entryWritten(String name, long size) {
+                throw new IllegalStateException("disk full");
+            }
+        });
+        try {
+            failing.addToArchiveIncremental(list, dir.toString(), "failed", null);
+            Assert.fail("the run should fail");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("disk full", e.getMessage());
+        }
+        File failed = new File(dir, "failed.tar");
+        Assert.assertFalse(TarIndex.sidecarFor(failed).exists());
+        byte[] written = Files.readAllBytes(failed.toPath());
+        Assert.assertFalse(written.length >= 1024
+                && Arrays.equals(new byte[1024], Arrays.copyOfRange(written, written.length - 1024, written.length)));
+    }
+
+    @Test
+    public void testMergedIncrementalsExtractLikeSerial() throws IOException {
+        for (String name : Arrays.asList("x.txt", "y.txt", "z.txt", "w.txt")) {
+            writeStringToFile(name + " " + getRandomStr(getRndInt()), new File(inDir, name));
+        }
+        List<String> list = Collections.singletonList(inDir.getAbsolutePath());
+        Archiver archiver = new Archiver();
+        Manifest full = archiver.addToArchiveIncremental(list, dir.toString(), "full", null);
+
+        Assert.assertTrue(new File(inDir, "x.txt").delete());
+        Assert.assertTrue(new File(inDir, "y.txt").delete());
+        Manifest level1 = archiver.addToArchiveIncremental(list, dir.toString(), "incr1", full);
+
+        // re-adds x only, then re-adds x and deletes z
+        writeStringToFile("x again " + getRandomStr(getRndInt()), new File(inDir, "x.txt"));
+        archiver.addToArchiveIncremental(list, dir.toString(), "readd", level1);
+        String z = readFiles(new File(inDir, "z.txt").getPath());
+        Assert.assertTrue(new File(inDir, "z.txt").delete());
+        archiver.addToArchiveIncremental(list, dir.toString(), "incr2", level1);
+
+        Archiver indexed = new Archiver();
+        indexed.setWriteIndex(true);
+        for (String last : Arrays.asList("readd", "incr2")) {
+            List<String> sources = Arrays.asList(new File(dir, "full.tar").getPath(),
+                    new File(dir, "incr1.tar").getPath(), new File(dir, last + ".tar").getPath());
+            archiver.mergeArchives(sources, dir.toString(), "merged-" + last);
+            indexed.mergeArchives(sources, dir.toString(), "indexed-" + last);
+        }
+
+        Archiver parallel = new Archiver();
+        parallel.setThreads(2);
+        Archiver tasks = new Archiver();
+        tasks.setMaxOpenFiles(2);
+        List<Archiver> extractors = Arrays.asList(new Archiver(), parallel, tasks);
+        for (String merged : Arrays.asList("merged-readd", "indexed-readd", "merged-incr2", "indexed-incr2")) {
+            List<String> expected = merged.endsWith("readd")
+                    ? Arrays.asList("x.txt", "z.txt", "w.txt") : Arrays.asList("x.txt", "w.txt");
+            for (int i = 0; i < extractors.size(); i++) {
+                File target = new File(outDir, merged + i);
+                extractors.get(i).extractArchive(new File(dir, merged + ".tar").getPath(), target.getPath());
+                Assert.assertEquals(merged + " " + i, new HashSet<>(expected),
+                        new HashSet<>(Arrays.asList(new File(target, "in").list())));
+                for (String name : Arrays.asList("x.txt", "w.txt")) {
+                    Assert.assertEquals(readFiles(new File(inDir, name).getPath()),
+                            readFiles(new File(target, "in/" + name).getPath()));
+                }
+            }
+            if (merged.endsWith("readd")) {
+                Assert.assertEquals(z, readFiles(new File(outDir, merged + "1/in/z.txt").getPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testDeletionsStayInDestination() throws IOException {
+        File victim = new File(dir, "victim.txt");
+        File absolute = new File(inDir1, "absolute.txt");
+        writeStringToFile("keep", victim);
+        writeStringToFile("keep", absolute);
+
+        File tar = new File(dir, "crafted.tar");
+        byte[] list = ("../../victim.txt\n" + absolute.getAbsolutePath() + "\nin/../../../victim.txt\nin/gone.txt\n")
+                .getBytes("UTF-8");
+        try (TarOutputStream out = new TarOutputStream(tar)) {
+            byte[] body = "gone".getBytes("UTF-8");
+            out.putNextEntry(new Entry(Header.createHeader("in/gone.txt", body.length, 0, false, 0644)));
+            out.write(body);
+            out.putNextEntry(new Entry(Header.createHeader(Archiver.DELETED_ENTRY, list.length, 0, false, 0644)));
+            out.write(list);
+        }
+
+        Archiver parallel = new Archiver();
+        parallel.setThreads(2);
+        Archiver taskPerFile = new Archiver();
+        taskPerFile.setMaxOpenFiles(2);
+        for (Archiver archiver : Arrays.asList(new Archiver(), parallel, taskPerFile)) {
+            File target = new File(outDir, "t" + outDir.list().length);
+            archiver.extractArchive(tar.getPath(), target.getPath());
+            Assert.assertTrue(target.isDirectory());
+            Assert.assertFalse(new File(target, "in/gone.txt").exists());
+            Assert.assertTrue(victim.exists());
+            Assert.assertTrue(absolute.exists());
+        }
+    }
+
+    @Test
+    public void testLaterEntryReplacesHardLink() throws IOException {
+        File tar = new File(dir, "relinked.tar");
+        byte[] list = "in/gone.txt\n".getBytes("UTF-8");
+        try (TarOutputStream out = new TarOutputStream(tar)) {
+            out.putNextEntry(new Entry(Header.createHeader("in/a.txt", 3, 0, false, 0644)));
+            out.write("aaa".getBytes("UTF-8"));
+            // b.txt is replaced before the links are created, c.txt after
+            for (String name : Arrays.asList("in/b.txt", "in/c.txt")) {
+                Entry link = new Entry(Header.createHeader(name, 0, 0, false, 0644));
+                link.setHardLink("in/a.txt");
+                out.putNextEntry(link);
+                if (name.equals("in/c.txt")) {
+                    out.putNextEntry(new Entry(Header.createHeader(Archiver.DELETED_ENTRY, list.length, 0, false, 0644)));
+                    out.write(list);
+                }
+                byte[] body = (name.equals("in/b.txt") ? "bbbb" : "cccc").getBytes("UTF-8");
+                out.putNextEntry(new Entry(Header.createHeader(name, body.length, 0, false, 0644)));
+                out.write(body);
+            }
+        }
+
+        Archiver parallel = new Archiver();
+        parallel.setThreads(2);
+        Archiver taskPerFile = new Archiver();
+        taskPerFile.setMaxOpenFiles(2);
+        for (Archiver archiver : Arrays.asList(new Archiver(), parallel, taskPerFile)) {
+            File target = new File(outDir, "t" + outDir.list().length);
+            archiver.extractArchive(tar.getPath(), target.getPath());
+            Assert.assertEquals("aaa", readFiles(new File(target, "in/a.txt").getPath()));
+            Assert.assertEquals("bbbb", readFiles(new File(target, "in/b.txt").getPath()));
+            Assert.assertEquals("cccc", readFiles(new File(target, "in/c.txt").getPath()));
+        }
+    }
+
+    @Test
+    public void testAppendToArchive() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "f" + i + ".txt"));
+        }
+        List<String> list = Collections.singletonList(inDir.getAbsolutePath());
+        Archiver archiver = new Archiver();
+        archiver.setWriteIndex(true);
+        archiver.addToArchive(list, dir.toString(), "append");
+        File tar = new File(dir, "append.tar");
+
+        // pad to a 10240-byte record the way tar(1) does
+        long length = tar.length();
+        try (RandomAccessFile raf = new RandomAccessFile(tar, "rw")) {
+            raf.setLength((length / 10240 + 1) * 10240);
+        }
+
+        writeStringToFile("changed " + getRandomStr(getRndInt()), new File(inDir, "f3.txt"));
+        new File(inDir, "f3.txt").setLastModified(System.currentTimeMillis() + 5000);
+        writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "new.txt"));
+
+        Assert.assertEquals(1, archiver.appendToArchive(list, tar.getPath(), false));
+        Assert.assertEquals(1, archiver.appendToArchive(list, tar.getPath(), true));
+        Assert.assertEquals(0, archiver.appendToArchive(list, tar.getPath(), true));
+
+        List<String> names = archiver.list(tar.getPath()).stream()
+                .map(Entry::getName)
+                .collect(Collectors.toList());
+        Assert.assertEquals(12, names.size());
+        Assert.assertEquals(Arrays.asList("in/new.txt", "in/f3.txt"), names.subList(10, 12));
+        try (TarReader reader = new TarReader(tar)) {
+            Assert.assertEquals(11, reader.getEntries().size());
+            Assert.assertEquals(tar.length() - 1024, reader.getEndOffset());
+        }
+
+        archiver.extractArchive(tar.getPath(), outDir.getPath());
+        for (String name : new File(inDir.getPath()).list()) {
+            Assert.assertEquals(readFiles(new File(inDir, name).getPath()), readFiles(new File(outDir, "in/" + name).getPath()));
+        }
+
+        // a failed append leaves the archive as it was
+        File one = new File(inDir1, "one.txt");
+        writeStringToFile(getRandomStr(getRndInt()), one);
+        Archiver plain = new Archiver();
+        plain.addToArchive(Collections.singletonList(one.getAbsolutePath()), dir.toString(), "intact");
+        File intact = new File(dir, "intact.tar");
+        byte[] before = Files.readAllBytes(intact.toPath());
+        File two = new File(inDir1, "two.bin");
+        Files.write(two.toPath(), new byte[200000]);
+        plain.setListener(new ArchiveListener() {
+            @Override
+            public void phase(Phase phase, long nanos) {
+                if (phase == Phase.OPEN) {
+                    // the file shrinks while it is being archived
+                    try (RandomAccessFile raf = new RandomAccessFile(two, "rw")) {
+                        raf.setLength(100);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        });
+        try {
+            plain.appendToArchive(Collections.singletonList(two.getAbsolutePath()), intact.getPath(), false);
+            Assert.fail("append of a shrinking file succeeded");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unexpected end of source"));
+        }
+        Assert.assertArrayEquals(before, Files.readAllBytes(intact.toPath()));
+        Assert.assertEquals(Collections.singletonList("one.txt"), new Archiver().list(intact.getPath()).stream()
+                .map(Entry::getName)
+                .collect(Collectors.toList()));
+
+        // files that are not tar archives, or have data after the archive, are left alone
+        byte[] archived = Files.readAllBytes(tar.toPath());
+        byte[] trailing = Arrays.copyOf(archived, archived.length + 512);
+        trailing[trailing.length - 100] = 'x';
+        List<byte[]> notTars = Arrays.asList(getRandomStr(2000).getBytes(), getRandomStr(100).getBytes(), trailing);
+        for (int i = 0; i < notTars.size(); i++) {
+            File file = new File(dir, "not-tar" + i);
+            Files.write(file.toPath(), notTars.get(i));
+            try {
+                archiver.appendToArchive(list, file.getPath(), false);
+                Assert.fail("appended to " + file);
+            } catch (IOException e) {
+                LOG.info("Refused to append: {}", e.getMessage());
+            }
+            Assert.assertArrayEquals(notTars.get(i), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void testLongNames() throws IOException {
+        String segment = getRandomStr(120);
+        File deep = new File(inDir, segment + "/" + segment + "/" + segment);
+        deep.mkdirs();
+        writeStringToFile(getRandomStr(getRndInt()), new File(deep, segment));
+        writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "short.txt"));
+
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "long");
+        String prefix = "in/" + segment + "/" + segment + "/" + segment + "/";
+        File tar = new File(dir, "long.tar");
+        Assert.assertEquals(new HashSet<>(Arrays.asList(prefix + segment, "in/short.txt")),
+                archiver.list(tar.getPath()).stream().map(Entry::getName).collect(Collectors.toSet()));
+
+        try (TarReader reader = new TarReader(tar)) {
+            IndexEntry entry = reader.getEntry(prefix + segment);
+            Assert.assertNotNull(entry);
+            Assert.assertEquals(prefix + segment, reader.readEntry(entry).getName());
+        }
+        Assert.assertTrue(archiver.extractFile(tar.getPath(), prefix + segment, outDir.getPath()));
+        Assert.assertEquals(readFiles(new File(deep, segment).getPath()),
+                readFiles(new File(outDir, prefix + segment).getPath()));
+
+        // non-ASCII names are built in memory, the file system may not be able to store them
+        File pax = new File(dir, "pax.tar");
+        byte[] content = "содержимое".getBytes("UTF-8");
+        try (TarOutputStream out = new TarOutputStream(pax)) {
+            out.putNextEntry(new Entry(Header.createHeader(prefix + "файл.txt", content.length, 0, false, 0644)));
+            out.write(content);
+        }
+        try (TarInputStream in = new TarInputStream(pax)) {
+            Entry entry = in.getNextEntry();
+            Assert.assertEquals(prefix + "файл.txt", entry.getName());
+            byte[] read = new byte[(int) entry.getSize()];
+            Assert.assertEquals(read.length, in.read(read));
+            Assert.assertArrayEquals(content, read);
+            Assert.assertNull(in.getNextEntry());
+        }
+        try (TarReader reader = new TarReader(pax)) {
+            Assert.assertNotNull(reader.getEntry(prefix + "файл.txt"));
+        }
+
+        // GNU tar writes long names as a '././@LongLink' entry of type 'L'
+        File gnu = new File(dir, "gnu.tar");
+        byte[] longName = (prefix + segment + "\0").getBytes("UTF-8");
+        byte[] body = "gnu".getBytes("UTF-8");
+        try (TarOutputStream out = new TarOutputStream(gnu)) {
+            Header link = Header.createHeader("././@LongLink", longName.length, 0, false, 0644);
+            link.linkFlag = Header.LF_GNU_LONGNAME;
+            out.putNextEntry(new Entry(link));
+            out.write(longName);
+            out.putNextEntry(new Entry(Header.createHeader(segment.substring(0, 100), body.length, 0, false, 0644)));
+            out.write(body);
+        }
+        try (TarInputStream in = new TarInputStream(gnu)) {
+            Entry entry = in.getNextEntry();
+            Assert.assertEquals(prefix + segment, entry.getName());
+            Assert.assertEquals(body.length, entry.getSize());
+            Assert.assertNull(in.getNextEntry());
+        }
+        try (TarReader reader = new TarReader(gnu)) {
+            Assert.assertEquals(Collections.singletonList(prefix + segment), reader.getEntries().stream()
+                    .map(IndexEntry::getName).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testSparseFiles() throws IOException {
+        byte[] head = new byte[10000];
+        byte[] middle = new byte[5000];
+        rnd.nextBytes(head);
+        rnd.nextBytes(middle);
+        File sparse = new File(inDir, "sparse.img");
+        try (RandomAccessFile raf = new RandomAccessFile(sparse, "rw")) {
+            raf.write(head);
+            raf.seek(3 * 1024 * 1024 + 100);
+            raf.write(middle);
+            raf.setLength(8 * 1024 * 1024);
+        }
+        File hole = new File(inDir, "hole.img");
+        try (RandomAccessFile raf = new RandomAccessFile(hole, "rw")) {
+            raf.setLength(1024 * 1024);
+        }
+        byte[] dense = new byte[100 * 1024];
+        rnd.nextBytes(dense);
+        Files.write(new File(inDir, "dense.bin").toPath(), dense);
+        byte[] expected = Files.readAllBytes(sparse.toPath());
+
+        Archiver archiver = new Archiver();
+        archiver.setSparse(true);
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "sparse");
+        File tar = new File(dir, "sparse.tar");
+        Assert.assertTrue(tar.length() < 200 * 1024);
+
+        List<Entry> entries = archiver.list(tar.getPath());
+        Assert.assertEquals(3, entries.stream().filter(e -> !e.isDirectory()).count());
+        for (Entry entry : entries) {
+            Assert.assertEquals(!entry.isDirectory() && !entry.getName().endsWith("dense.bin"), entry.isSparse());
+        }
+        try (TarReader reader = new TarReader(tar)) {
+            IndexEntry entry = reader.getEntry("in/sparse.img");
+            Assert.assertTrue(entry.isSparse());
+            Assert.assertEquals(8 * 1024 * 1024, entry.getRealSize());
+        }
+
+        for (int mode = 0; mode < 3; mode++) {
+            Archiver extractor = new Archiver();
+            extractor.setThreads(mode == 1 ? 2 : 1);
+            extractor.setMaxOpenFiles(mode == 2 ? 4 : 0);
+            File out = new File(outDir, "mode" + mode);
+            extractor.extractArchive(tar.getPath(), out.getPath());
+            Assert.assertArrayEquals(expected, Files.readAllBytes(new File(out, "in/sparse.img").toPath()));
+            Assert.assertArrayEquals(new byte[1024 * 1024], Files.readAllBytes(new File(out, "in/hole.img").toPath()));
+            Assert.assertArrayEquals(dense, Files.readAllBytes(new File(out, "in/dense.bin").toPath()));
+        }
+
+        Assert.assertTrue(archiver.extractFile(tar.getPath(), "in/sparse.img", new File(outDir, "single").getPath()));
+        Assert.assertArrayEquals(expected, Files.readAllBytes(new File(outDir, "single/in/sparse.img").toPath()));
+    }
+
+    @Test
+    public void testReactiveStreams() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "f" + i + ".txt"));
+        }
+        byte[] big = new byte[200 * 1024 + 3];
+        rnd.nextBytes(big);
+        Files.write(new File(inDir, "big.bin").toPath(), big);
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(Collections.singletonList(inDir.getAbsolutePath()), dir.toString(), "source");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            File copy = new File(dir, "copy.tar");
+            TarSubscriber subscriber = new TarSubscriber(copy);
+            new TarPublisher(new FileInputStream(new File(dir, "source.tar")), executor).subscribe(subscriber);
+            Assert.assertEquals(21L, (long) subscriber.getResult().get(10, TimeUnit.SECONDS));
+
+            archiver.extractArchive(copy.getPath(), outDir.getPath());
+            for (String name : inDir.list()) {
+                Assert.assertArrayEquals(Files.readAllBytes(new File(inDir, name).toPath()),
+                        Files.readAllBytes(new File(outDir, "in/" + name).toPath()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // an upload pushed part by part, never more than requested
+        long[] requested = {0};
+        Subscription subscription = new Subscription() {
+            @Override
+            public void request(long n) {
+                requested[0] += n;
+            }
+
+            @Override
+            public void cancel() {
+                requested[0] = -1;
+            }
+        };
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        TarSubscriber subscriber = new TarSubscriber(upload);
+        subscriber.onSubscribe(subscription);
+        Assert.assertEquals(TarSubscriber.PREFETCH, requested[0]);
+        subscriber.onNext(EntryPart.of(new Entry("upload/data.bin", big.length, 1500000000L, 0644)));
+        for (int off = 0; off < big.length; off += 70000) {
+            subscriber.onNext(EntryPart.of(ByteBuffer.wrap(big, off, Math.min(70000, big.length - off))));
+        }
+        subscriber.onComplete();
+        Assert.assertEquals(1L, (long) subscriber.getResult().get());
+        Assert.assertEquals(TarSubscriber.PREFETCH + 4, requested[0]);
+
+        TarInputStream tis = new TarInputStream(new ByteArrayInputStream(upload.toByteArray()));
+        Entry entry = tis.getNextEntry();
+        Assert.assertEquals("upload/data.bin", entry.getName());
+        byte[] read = new byte[big.length];
+        new DataInputStream(tis).readFully(read);
+        Assert.assertArrayEquals(big, read);
+        Assert.assertNull(tis.getNextEntry());
+
+        // a body shorter than its header fails the archive and still closes the output
+        boolean[] closed = {false};
+        subscriber = new TarSubscriber(new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        });
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext(EntryPart.of(new Entry("short.bin", 10, 0, 0644)));
+        subscriber.onNext(EntryPart.of(ByteBuffer.wrap(new byte[5])));
+        subscriber.onComplete();
+        Assert.assertTrue(subscriber.getResult().isCompletedExceptionally());
+        Assert.assertTrue(closed[0]);
+
+        File truncated = new File(dir, "truncated.tar");
+        subscriber = new TarSubscriber(truncated);
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext(EntryPart.of(new Entry("short.bin", 10, 0, 0644)));
+        subscriber.onNext(EntryPart.of(ByteBuffer.wrap(new byte[5])));
+        subscriber.onComplete();
+        try {
+            subscriber.getResult().get();
+            Assert.fail("archive with a short entry completed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("short.bin"));
+        }
+        // the batch was dropped rather than flushed on close
+        Assert.assertEquals(0, truncated.length());
+    }
+
+    @Test
+    public void testAsyncArchiveIsIdentical() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "f" + i + ".txt"));
+        }
+        byte[] big = new byte[3 * 1024 * 1024 + 7];
+        rnd.nextBytes(big);
+        Files.write(new File(inDir, "big.bin").toPath(), big);
+        new File(inDir, "empty").mkdirs();
+        new File(inDir, "d").mkdirs();
+        writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "d/" + getRandomStr(120)));
+        List<String> list = Collections.singletonList(inDir.getAbsolutePath());
+
+        Archiver archiver = new Archiver();
+        archiver.setWriteIndex(true);
+        archiver.addToArchive(list, dir.toString(), "serial");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<CompletableFuture<Long>> jobs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                jobs.add(archiver.addToArchiveAsync(list, dir.toString(), "async" + i, executor));
+            }
+            byte[] expected = Files.readAllBytes(new File(dir, "serial.tar").toPath());
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(expected.length, (long) jobs.get(i).get(30, TimeUnit.SECONDS));
+                Assert.assertArrayEquals(expected, Files.readAllBytes(new File(dir, "async" + i + ".tar").toPath()));
+                // the sidecars differ only in the modification time of their archives
+                TarIndex serialIndex = TarIndex.load(new File(dir, "serial.tar"));
+                TarIndex asyncIndex = TarIndex.load(new File(dir, "async" + i + ".tar"));
+                Assert.assertNotNull(asyncIndex);
+                Assert.assertEquals(serialIndex.getArchiveLength(), asyncIndex.getArchiveLength());
+                Assert.assertEquals(describe(serialIndex), describe(asyncIndex));
+            }
+
+            // a missing source fails its entry and the archive
+            AsyncTarWriter writer = new AsyncTarWriter(new File(dir, "broken.tar"), executor, 2);
+            CompletableFuture<IndexEntry> missing = writer.write(new Entry("missing.bin", 10, 0, 0644),
+                    new File(inDir, "missing.bin"));
+            // sparse entries are refused before they take a place in the archive
+            Entry sparse = new Entry("sparse.bin", 10, 0, 0644);
+            sparse.getHeader().sparseSize = 1 << 20;
+            try {
+                writer.write(sparse, new File(inDir, "missing.bin"));
+                Assert.fail("sparse entry accepted");
+            } catch (IllegalArgumentException e) {
+                LOG.info("Refused: {}", e.getMessage());
+            }
+            CompletableFuture<IndexEntry> present = writer.write(new Entry("present.bin", 3, 0, 0644),
+                    ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            CompletableFuture<Long> archive = writer.finish();
+            Assert.assertEquals(1024, present.get(10, TimeUnit.SECONDS).getHeaderOffset());
+            try {
+                archive.get(10, TimeUnit.SECONDS);
+                Assert.fail("archive with a missing source completed");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            Assert.assertTrue(missing.isCompletedExceptionally());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testArchiveService() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "f" + i + ".txt"));
+        }
+        List<String> list = Collections.singletonList(inDir.getAbsolutePath());
+
+        // the first job holds the only thread until it is cancelled
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Supplier<Archiver> archivers = () -> {
+            if (calls.getAndIncrement() == 0) {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new Archiver();
+        };
+
+        try (ArchiveService service = new ArchiveService(1, 2 * 1024 * 1024, archivers)) {
+            Assert.assertEquals(2, service.getBufferCapacity());
+            ArchiveJob blocked = service.submitArchive(list, dir.toString(), "blocked", 0);
+            started.await();
+
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            ArchiveJob low = service.submitArchive(list, dir.toString(), "low", 0);
+            ArchiveJob high = service.submitArchive(list, dir.toString(), "high", 5);
+            ArchiveJob dropped = service.submitArchive(list, dir.toString(), "dropped", 9);
+            low.getResult().thenRun(() -> order.add("low"));
+            high.getResult().thenRun(() -> order.add("high"));
+            Assert.assertEquals(3, service.getQueuedJobs());
+
+            Assert.assertTrue(dropped.cancel());
+            Assert.assertEquals(ArchiveJob.State.CANCELLED, dropped.getState());
+            Assert.assertTrue(blocked.cancel());
+            try {
+                blocked.getResult().get(10, TimeUnit.SECONDS);
+                Assert.fail("cancelled job completed");
+            } catch (CancellationException expected) {
+                Assert.assertEquals(ArchiveJob.State.CANCELLED, blocked.getState());
+            }
+
+            low.getResult().get(10, TimeUnit.SECONDS);
+            high.getResult().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(Arrays.asList("high", "low"), order);
+            Assert.assertFalse(new File(dir, "dropped.tar").exists());
+            Assert.assertEquals(10, low.getEntriesProcessed());
+            Assert.assertEquals(new File(dir, "low.tar").length(), low.getBytesProcessed());
+
+            File tar = new File(dir, "low.tar");
+            ArchiveJob extract = service.submitExtract(tar.getPath(), outDir.getPath(), 0);
+            extract.getResult().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(ArchiveJob.State.SUCCEEDED, extract.getState());
+            Assert.assertEquals(tar.length(), extract.getTotalBytes());
+            Assert.assertEquals(10, extract.getEntriesProcessed());
+            Assert.assertEquals(1.0, extract.getProgress(), 0);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(readFiles(new File(inDir, "f" + i + ".txt").getPath()),
+                        readFiles(new File(outDir, "in/f" + i + ".txt").getPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testArchiveServiceAging() throws Exception {
+        writeStringToFile(getRandomStr(getRndInt()), new File(inDir, "f.txt"));
+        List<String> list = Collections.singletonList(inDir.getAbsolutePath());
+
+        // every job started submits another high priority one, so without aging
+        // the low priority job would wait for the whole flood
+        int flood = 1000;
+        AtomicInteger highs = new AtomicInteger();
+        AtomicReference<ArchiveService> services = new AtomicReference<>();
+        Supplier<Archiver> archivers = () -> {
+            int n = highs.getAndIncrement();
+            if (n < flood) {
+                services.get().submitArchive(list, dir.toString(), "high", 5);
+            }
+            return new Archiver();
+        };
+
+        try (ArchiveService service = new ArchiveService(1, 1024 * 1024, archivers, 10)) {
+            services.set(service);
+            service.submitArchive(list, dir.toString(), "high", 5);
+            service.submitArchive(list, dir.toString(), "high", 5);
+            ArchiveJob low = service.submitArchive(list, dir.toString(), "low", 0);
+            low.getResult().get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(ArchiveJob.State.SUCCEEDED, low.getState());
+            Assert.assertTrue(highs.get() < flood);
+        }
+    }
+
+    @Test
+    public void testDeduplicatedArchive() throws IOException {
+        byte[] shared = new byte[64 * 1024];
+        rnd.nextBytes(shared);
+        byte[] sameSize = new byte[shared.length];
+        rnd.nextBytes(sameSize);
+        Files.write(new File(inDir, "a.bin").toPath(), shared);
+        Files.write(new File(inDir1, "b.bin").toPath(), shared);
+        Files.write(new File(inDir1, "c.bin").toPath(), sameSize);
+        Files.write(new File(inDir1, "d.bin").toPath(), shared);
+        List<String> list = Arrays.asList(inDir.getAbsolutePath(), inDir1.getAbsolutePath());
+
+        Archiver archiver = new Archiver();
+        archiver.addToArchive(list, dir.toString(), "full");
+        archiver.setDeduplicate(true);
+        archiver.addToArchive(list, dir.toString(), "dedup");
+
+        File dedup = new File(dir, "dedup.tar");
+        Assert.assertTrue(dedup.length() + 2 * shared.length <= new File(dir, "full.tar").length());
+        long links = archiver.list(dedup.getPath()).stream().filter(Entry::isHardLink).count();
+        Assert.assertEquals(2, links);
+
+        for (int threads : new int[]{1, 4}) {
+            File dest = new File(outDir, "t" + threads);
+            Archiver extractor = new Archiver();
+            extractor.setThreads(threads);
+            extractor.extractArchive(dedup.getPath(), dest.getPath());
+            Assert.assertArrayEquals(shared, Files.readAllBytes(new File(dest, "in/a.bin").toPath()));
+            Assert.assertArrayEquals(shared, Files.readAllBytes(new File(dest, "in1/b.bin").toPath()));
+            Assert.assertArrayEquals(sameSize, Files.readAllBytes(new File(dest, "in1/c.bin").toPath()));
+            Assert.assertArrayEquals(shared, Files.readAllBytes(new File(dest, "in1/d.bin").toPath()));
+        }
+
+        Assert.assertTrue(archiver.extractFile(dedup.getPath(), "in1/d.bin", new File(outDir, "single").getPath()));
+        Assert.assertArrayEquals(shared, Files.readAllBytes(new File(outDir, "single/in1/d.bin").toPath()));
+    }
+
     private int getRndInt() {
         return rnd.nextInt(lenghRandomString);
     }
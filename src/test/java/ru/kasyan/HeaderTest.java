@@ -0,0 +1,177 @@
+package ru.kasyan;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HeaderTest {
+
+    private Entry newEntry(String name, long size) {
+        Header header = Header.createHeader(name, size, 1504396800L, false, 0644);
+        return new Entry(header);
+    }
+
+    @Test
+    public void testWriteAtOffsetMatchesWrite() {
+        Entry entry = newEntry("dir/sub/file.txt", 12345);
+        byte[] plain = new byte[512];
+        entry.writeEntryHeader(plain);
+
+        byte[] batch = new byte[3 * 512];
+        Arrays.fill(batch, (byte) 7);
+        entry.writeEntryHeader(batch, 512);
+
+        Assert.assertArrayEquals(plain, Arrays.copyOfRange(batch, 512, 1024));
+        Assert.assertEquals(7, batch[511]);
+        Assert.assertEquals(7, batch[1024]);
+    }
+
+    @Test
+    public void testViewMatchesEntry() {
+        String longName = "very/long/path/" + new String(new char[90]).replace('\0', 'x');
+        Entry written = newEntry(longName, 8L * 1024 * 1024 * 1024 - 1);
+        byte[] buf = new byte[512];
+        written.writeEntryHeader(buf);
+
+        Entry parsed = new Entry(buf);
+        HeaderView view = new HeaderView().reset(buf, 0);
+        Assert.assertEquals(parsed.getName(), view.getName());
+        Assert.assertEquals(longName, view.getName());
+        Assert.assertEquals(parsed.getSize(), view.getSize());
+        Assert.assertEquals(1504396800L, view.getModTime());
+        Assert.assertEquals(0644, view.getMode());
+        Assert.assertTrue(view.isChecksumValid());
+        Assert.assertFalse(view.isZeroBlock());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(512);
+        direct.put(buf).flip();
+        Assert.assertEquals(longName, new HeaderView().reset(direct).getName());
+
+        buf[0] ^= 1;
+        Assert.assertFalse(view.isChecksumValid());
+    }
+
+    @Test
+    public void testLongOctalBytes() {
+        byte[] buf = new byte[12];
+        Octal.getLongOctalBytes(0755L, buf, 0, 12);
+        Assert.assertEquals("        755 ", new String(buf));
+        Assert.assertEquals(0755L, Octal.parseOctal(buf, 0, 12));
+    }
+
+    @Test
+    public void testLongNamesUsePaxRecords() throws IOException {
+        String segment = new String(new char[120]).replace('\0', 'x');
+        Assert.assertNull(PaxHeaders.encode(newEntry("dir/" + segment.substring(0, 90), 1).getHeader()));
+
+        for (String name : Arrays.asList(segment + segment + segment, "a/" + segment + "/" + segment,
+                "каталог/файл.txt")) {
+            Entry entry = newEntry(name, 1);
+            Assert.assertEquals(name, entry.getName());
+            byte[] records = PaxHeaders.encode(entry.getHeader());
+            Assert.assertNotNull(name, records);
+
+            Map<String, String> parsed = new HashMap<>();
+            PaxHeaders.parse(records, parsed);
+            Assert.assertEquals(name, parsed.get(PaxHeaders.PATH));
+
+            Entry read = new Entry(new byte[512]);
+            PaxHeaders.apply(parsed, read.getHeader());
+            Assert.assertEquals(name, read.getName());
+        }
+
+        // a split that fits the prefix and name fields needs no extended header
+        String split = new String(new char[150]).replace('\0', 'p') + "/" + segment.substring(0, 99);
+        Entry entry = newEntry(split, 1);
+        Assert.assertNull(PaxHeaders.encode(entry.getHeader()));
+        byte[] buf = new byte[512];
+        entry.writeEntryHeader(buf);
+        Assert.assertEquals(split, new HeaderView().reset(buf, 0).getName());
+    }
+
+    @Test
+    public void testPaxRecordLength() throws IOException {
+        // the length prefix counts itself, so records of 98..99 bytes without it get a 3 digit prefix
+        for (int valueLength = 80; valueLength < 95; valueLength++) {
+            String name = "é" + new String(new char[valueLength]).replace('\0', 'v');
+            byte[] records = PaxHeaders.encode(newEntry(name, 1).getHeader());
+            String record = new String(records, StandardCharsets.UTF_8);
+            Assert.assertEquals(record, records.length, Integer.parseInt(record.substring(0, record.indexOf(' '))));
+        }
+    }
+
+    @Test
+    public void testLargeSizeInBase256() throws IOException {
+        long size = 20L * 1024 * 1024 * 1024 + 5;
+        Entry entry = newEntry("dump.sql", size);
+        byte[] buf = new byte[512];
+        entry.writeEntryHeader(buf);
+
+        Assert.assertEquals((byte) 0x80, buf[HeaderView.SIZE_OFFSET]);
+        Assert.assertEquals(size, new HeaderView().reset(buf, 0).getSize());
+        Assert.assertEquals(size, new Entry(buf).getSize());
+
+        Map<String, String> parsed = new HashMap<>();
+        PaxHeaders.parse(PaxHeaders.encode(entry.getHeader()), parsed);
+        Assert.assertEquals(Long.toString(size), parsed.get(PaxHeaders.SIZE));
+    }
+
+    @Test
+    public void testEntryEqualityUsesFullName() {
+        String prefix = "very/long/path/" + new String(new char[90]).replace('\0', 'x');
+        Entry first = newEntry(prefix + "/a.txt", 1);
+        Entry second = newEntry(prefix + "/a.txt", 2);
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.hashCode(), second.hashCode());
+        Assert.assertNotEquals(first, newEntry("other/a.txt", 1));
+
+        byte[] buf = new byte[512];
+        first.writeEntryHeader(buf);
+        Entry parsed = new Entry(buf);
+        Assert.assertEquals(first, parsed);
+        Assert.assertSame(parsed.getUserName(), new Entry(buf).getUserName());
+    }
+
+    @Test
+    public void testPathTrie() {
+        PathTrie<Integer> trie = new PathTrie<>();
+        List<String> names = Arrays.asList("a/", "a/b/", "a/b/c.txt", "a/bc.txt", "d/b/c.txt", "/abs", "a//x", "top");
+        for (int i = 0; i < names.size(); i++) {
+            Assert.assertNull(trie.put(names.get(i), i));
+        }
+        for (int i = 0; i < 100; i++) {
+            trie.put("many/f" + i, 100 + i);
+        }
+        Assert.assertEquals(Integer.valueOf(2), trie.put("a/b/c.txt", 2));
+        Assert.assertEquals(names.size() + 100, trie.size());
+
+        for (int i = 0; i < names.size(); i++) {
+            Assert.assertEquals(Integer.valueOf(i), trie.get(names.get(i)));
+            Assert.assertEquals(names.get(i), trie.node(names.get(i)).getPath());
+        }
+        Assert.assertEquals(Integer.valueOf(157), trie.get("many/f57"));
+        Assert.assertNull(trie.get("a"));
+        Assert.assertNull(trie.get("a/b/c"));
+        Assert.assertNull(trie.get("many/f100"));
+
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 6), trie.getSubtree("a"));
+        Assert.assertEquals(Arrays.asList(1, 2), trie.getSubtree("a/b/"));
+        Assert.assertEquals(Collections.singletonList(3), trie.getSubtree("a/bc.txt"));
+        Assert.assertEquals(100, trie.getSubtree("many").size());
+        Assert.assertTrue(trie.getSubtree("a/x").isEmpty());
+        Assert.assertEquals(trie.size(), trie.getSubtree("").size());
+        Assert.assertEquals(trie.values(), trie.getSubtree(""));
+
+        Assert.assertTrue(PathTrie.isUnder("a/b/c.txt", "a/b"));
+        Assert.assertTrue(PathTrie.isUnder("a/b/", "a/b"));
+        Assert.assertFalse(PathTrie.isUnder("a/bc.txt", "a/b"));
+    }
+}